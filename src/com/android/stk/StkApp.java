@@ -17,15 +17,19 @@
 package com.android.stk;
 
 import android.app.Application;
+import android.os.SystemProperties;
 
+import com.android.internal.telephony.gsm.stk.AppInterface;
 import com.android.internal.telephony.gsm.stk.Duration;
 
+import java.util.Locale;
+
 /**
  * Top-level Application class for STK app.
  */
 abstract class StkApp extends Application {
     // Application constants
-    public static final boolean DBG = true;
+    public static final boolean DBG = false;
 
     // Identifiers for option menu items
     static final int MENU_ID_END_SESSION = android.view.Menu.FIRST;
@@ -38,29 +42,128 @@ abstract class StkApp extends Application {
     // Tone default timeout - 2 seconds
     static final int TONE_DFEAULT_TIMEOUT = (2 * 1000);
 
+    // Maximum number of telephony messages queued while a command is in
+    // progress.
+    static final int CMD_QUEUE_CAPACITY =
+            SystemProperties.getInt("stk.cmd_queue_capacity", 16);
+
+    // Time the next interactive command is held back after the browser was
+    // launched, 10 seconds.
+    static final int BROWSER_SETTLE_TIMEOUT = (10 * 1000);
+
+    // Memory budget of the icon cache, 512 KB by default.
+    static final int ICON_CACHE_BYTES =
+            SystemProperties.getInt("stk.icon_cache_kb", 512) * 1024;
+
+    // Time a tone generator is kept warm after the last tone, 10 seconds.
+    static final int TONE_IDLE_RELEASE = (10 * 1000);
+
+    // Time an interactive command may stay unanswered, from its arrival
+    // until the terminal response, 2 minutes.
+    static final int CMD_BUDGET = (120 * 1000);
+
+    // Time a command's budget runs past the UI timeout of the command, for
+    // the UI to answer, 10 seconds.
+    static final int CMD_BUDGET_MARGIN = (10 * 1000);
+
+    // Interval the metrics are appended to the stats file at, 15 minutes.
+    static final int STATS_INTERVAL = (15 * 60 * 1000);
+
+    // Value of the stk.tone_backend property selecting PCM synthesized tones
+    // instead of ToneGenerator.
+    static final String TONE_BACKEND_PCM = "pcm";
+
     public static final String TAG = "STK App";
 
+    /**
+     * Returns the browser settle window in ms. Lab setups can shorten it, or
+     * turn it off with 0, through the stk.browser_settle_ms property.
+     */
+    static int getBrowserSettleTimeout() {
+        int timeout = SystemProperties.getInt("stk.browser_settle_ms",
+                BROWSER_SETTLE_TIMEOUT);
+        return timeout < 0 ? 0 : timeout;
+    }
+
+    /**
+     * Returns the time in ms the tone player stays warm after a tone,
+     * configurable through the stk.tone_idle_release_ms property.
+     */
+    static int getToneIdleRelease() {
+        int timeout = SystemProperties.getInt("stk.tone_idle_release_ms",
+                TONE_IDLE_RELEASE);
+        return timeout < 0 ? 0 : timeout;
+    }
+
+    /**
+     * Returns the interval in ms the metrics are written to the stats file
+     * at, configurable through the stk.stats_interval_ms property. 0 turns
+     * the stats file off.
+     */
+    static int getStatsInterval() {
+        int interval = SystemProperties.getInt("stk.stats_interval_ms",
+                STATS_INTERVAL);
+        return interval < 0 ? 0 : interval;
+    }
+
+    /**
+     * Returns true if tones are synthesized and streamed by the app rather
+     * than played by ToneGenerator.
+     */
+    static boolean isPcmToneBackend() {
+        return TONE_BACKEND_PCM.equals(SystemProperties.get("stk.tone_backend"));
+    }
+
     /**
      * This function calculate the time in MS from a duration instance.
-     * returns zero when duration is null.
+     * returns zero when duration is null. Values that don't fit in an int
+     * are clamped to Integer.MAX_VALUE.
      */
     public static int calculateDurationInMilis(Duration duration) {
-        int timeout = 0;
-        if (duration != null) {
-            switch (duration.timeUnit) {
-            case MINUTE:
-                timeout = 1000 * 60;
-                break;
-            case TENTH_SECOND:
-                timeout = 1000 * 10;
-                break;
-            case SECOND:
-            default:
-                timeout = 1000;
-                break;
-            }
-            timeout *= duration.timeInterval;
+        if (duration == null || duration.timeInterval <= 0) {
+            return 0;
         }
-        return timeout;
+        long unit;
+        switch (duration.timeUnit) {
+        case MINUTE:
+            unit = 1000 * 60;
+            break;
+        case TENTH_SECOND:
+            unit = 100;
+            break;
+        case SECOND:
+        default:
+            unit = 1000;
+            break;
+        }
+        long timeout = unit * duration.timeInterval;
+        return (timeout > Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) timeout;
+    }
+
+    /**
+     * Returns the time in ms the UI waits for the user's response to a
+     * command of the given type, when the command doesn't specify one.
+     * Defaults to UI_TIMEOUT and can be set per type through the
+     * stk.timeout.<command type> property, e.g. stk.timeout.get_input.
+     */
+    static int getUiTimeout(AppInterface.CommandType type) {
+        if (type == null) {
+            return UI_TIMEOUT;
+        }
+        int timeout = SystemProperties.getInt("stk.timeout."
+                + type.name().toLowerCase(Locale.US), UI_TIMEOUT);
+        return (timeout > 0) ? timeout : UI_TIMEOUT;
+    }
+
+    /**
+     * Returns the time in ms a command of the given type may stay unanswered
+     * before the watchdog answers it. Defaults to CMD_BUDGET and can be set
+     * per type through the stk.budget.<command type> property, e.g.
+     * stk.budget.select_item. 0 turns the watchdog off for the type.
+     */
+    static int getCmdBudget(AppInterface.CommandType type) {
+        int budget = SystemProperties.getInt("stk.budget."
+                + type.name().toLowerCase(Locale.US), CMD_BUDGET);
+        return (budget > 0) ? budget : 0;
     }
 }
@@ -21,26 +21,110 @@ import com.android.internal.telephony.gsm.stk.StkLog;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
 
 /**
  * Application installer for SIM Toolkit.
  *
+ * Install state changes are applied on a background thread. Requests made
+ * in quick succession (e.g. during SIM initialization) are coalesced so only
+ * the last one is applied, and requests matching the current state are
+ * skipped without calling into the PackageManager.
  */
 abstract class StkAppInstaller {
     private StkAppInstaller() {}
 
+    private static final int STATE_UNKNOWN = 0;
+    private static final int STATE_ENABLED = 1;
+    private static final int STATE_DISABLED = 2;
+
+    private static final int MSG_APPLY = 1;
+
+    // Time requests are held back to coalesce flips, in ms.
+    private static final int COALESCE_DELAY = 200;
+
+    // State last applied to (or read from) the PackageManager.
+    private static int sState = STATE_UNKNOWN;
+    // State last requested.
+    private static int sRequested = STATE_UNKNOWN;
+    // State being applied by the installer thread, STATE_UNKNOWN when idle.
+    private static int sInFlight = STATE_UNKNOWN;
+    private static Handler sHandler = null;
+
+    // Statistics
+    private static long sApplied = 0;
+    private static long sSkipped = 0;
+    private static long sCoalesced = 0;
+
     static void install(Context context) {
-        setAppState(context, true);
+        requestAppState(context, true);
     }
 
     static void unInstall(Context context) {
-        setAppState(context, false);
+        requestAppState(context, false);
+    }
+
+    static synchronized long getAppliedCount() {
+        return sApplied;
+    }
+
+    static synchronized long getSkippedCount() {
+        return sSkipped;
+    }
+
+    static synchronized long getCoalescedCount() {
+        return sCoalesced;
+    }
+
+    static synchronized String dumpState() {
+        return "state=" + sState + " requested=" + sRequested
+                + " inFlight=" + sInFlight
+                + " applied=" + sApplied + " skipped=" + sSkipped
+                + " coalesced=" + sCoalesced;
     }
 
-    private static void setAppState(Context context, boolean install) {
+    private static synchronized void requestAppState(Context context,
+            boolean install) {
         if (context == null) {
             return;
         }
+        sRequested = install ? STATE_ENABLED : STATE_DISABLED;
+        if (sHandler == null) {
+            HandlerThread thread = new HandlerThread("Stk App Installer");
+            thread.start();
+            sHandler = new InstallerHandler(thread);
+        }
+        if (sHandler.hasMessages(MSG_APPLY) || sInFlight != STATE_UNKNOWN) {
+            // The pending or running transition picks up the latest request.
+            sCoalesced++;
+            return;
+        }
+        if (sRequested == sState) {
+            sSkipped++;
+            return;
+        }
+        sHandler.sendMessageDelayed(sHandler.obtainMessage(MSG_APPLY,
+                context.getApplicationContext()), COALESCE_DELAY);
+    }
+
+    private static final class InstallerHandler extends Handler {
+        InstallerHandler(HandlerThread thread) {
+            super(thread.getLooper());
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+            case MSG_APPLY:
+                applyAppState((Context) msg.obj);
+                break;
+            }
+        }
+    }
+
+    private static void applyAppState(Context context) {
         PackageManager pm = context.getPackageManager();
         if (pm == null) {
             return;
@@ -48,14 +132,64 @@ abstract class StkAppInstaller {
         // check that STK app package is known to the PackageManager
         ComponentName cName = new ComponentName("com.android.stk",
                 "com.android.stk.StkLauncherActivity");
-        int state = install ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
-                : PackageManager.COMPONENT_ENABLED_STATE_DISABLED;
 
+        boolean unknown;
+        synchronized (StkAppInstaller.class) {
+            unknown = (sState == STATE_UNKNOWN);
+        }
+        if (unknown) {
+            int current = readAppState(pm, cName);
+            synchronized (StkAppInstaller.class) {
+                sState = current;
+            }
+        }
+
+        // Requests made while a transition is in flight are only recorded,
+        // so keep applying until the applied state is the requested one.
+        boolean applied = false;
+        while (true) {
+            int requested;
+            synchronized (StkAppInstaller.class) {
+                requested = sRequested;
+                if (requested == sState) {
+                    sInFlight = STATE_UNKNOWN;
+                    if (!applied) {
+                        sSkipped++;
+                    }
+                    return;
+                }
+                sInFlight = requested;
+            }
+
+            int state = (requested == STATE_ENABLED)
+                    ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
+                    : PackageManager.COMPONENT_ENABLED_STATE_DISABLED;
+            try {
+                pm.setComponentEnabledSetting(cName, state,
+                        PackageManager.DONT_KILL_APP);
+                synchronized (StkAppInstaller.class) {
+                    sState = requested;
+                    sApplied++;
+                }
+                applied = true;
+            } catch (Exception e) {
+                StkLog.d("StkAppInstaller", "Could not change STK app state");
+                synchronized (StkAppInstaller.class) {
+                    sInFlight = STATE_UNKNOWN;
+                }
+                return;
+            }
+        }
+    }
+
+    private static int readAppState(PackageManager pm, ComponentName cName) {
         try {
-            pm.setComponentEnabledSetting(cName, state,
-                    PackageManager.DONT_KILL_APP);
+            // The launcher activity is disabled in the manifest.
+            return (pm.getComponentEnabledSetting(cName)
+                    == PackageManager.COMPONENT_ENABLED_STATE_ENABLED)
+                    ? STATE_ENABLED : STATE_DISABLED;
         } catch (Exception e) {
-            StkLog.d("StkAppInstaller", "Could not change STK app state");
+            return STATE_UNKNOWN;
         }
     }
 }
@@ -16,42 +16,44 @@
 
 package com.android.stk;
 
-import android.app.Notification;
+import android.app.Activity;
 import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.PowerManager;
+import android.os.SystemClock;
 import android.telephony.TelephonyManager;
 import android.view.Gravity;
-import android.view.LayoutInflater;
-import android.view.View;
-import android.widget.ImageView;
-import android.widget.RemoteViews;
-import android.widget.TextView;
 import android.widget.Toast;
 
 import com.android.internal.telephony.gsm.stk.AppInterface;
+import com.android.internal.telephony.gsm.stk.Input;
 import com.android.internal.telephony.gsm.stk.Menu;
-import com.android.internal.telephony.gsm.stk.Item;
-import com.android.internal.telephony.gsm.stk.ResultCode;
 import com.android.internal.telephony.gsm.stk.StkCmdMessage;
 import com.android.internal.telephony.gsm.stk.StkCmdMessage.BrowserSettings;
 import com.android.internal.telephony.gsm.stk.StkLog;
-import com.android.internal.telephony.gsm.stk.StkResponseMessage;
 import com.android.internal.telephony.gsm.stk.TextMessage;
 
-import java.util.LinkedList;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * SIM toolkit application level service. Interacts with Telephopny messages,
- * application's launch and user input from STK UI elements.
+ * application's launch and user input from STK UI elements. The commands of
+ * each SIM slot are handled by the slot's StkSlotEngine, the service routes
+ * to it and owns what the slots share.
  *
  */
 public class StkAppService extends Service implements Runnable {
@@ -59,21 +61,34 @@ public class StkAppService extends Service implements Runnable {
     // members
     private volatile Looper mServiceLooper;
     private volatile ServiceHandler mServiceHandler;
+    // Background thread for file I/O kept off the service thread.
+    private HandlerThread mIoThread;
+    private Handler mIoHandler;
     private AppInterface mStkService;
     private Context mContext = null;
-    private StkCmdMessage mMainCmd = null;
-    private StkCmdMessage mCurrentCmd = null;
-    private Menu mCurrentMenu = null;
-    private String lastSelectedItem = null;
-    private boolean mMenuIsVisibile = false;
-    private boolean responseNeeded = true;
-    private boolean mCmdInProgress = false;
+    // Engines indexed by slot, null for slots without a toolkit. Set by the
+    // service thread before mServiceHandler is published.
+    private volatile StkSlotEngine[] mEngines = null;
     private NotificationManager mNotificationManager = null;
-    private LinkedList<DelayedCmd> mCmdsQ = null;
-    private boolean launchBrowser = false;
-    private BrowserSettings mBrowserSettings = null;
+    private StkIdleTextNotifier mIdleText = null;
+    private StkEventMessagePresenter mEventMessages = null;
     static StkAppService sInstance = null;
 
+    // Released by the service thread once mServiceHandler can accept messages.
+    private final CountDownLatch mServiceReady = new CountDownLatch(1);
+    private long mCreateTime = 0;
+    private volatile long mTimeToReady = -1;
+    private long mTimeToFirstCmd = -1;
+    private final StkLatencyTracker mLatencyTracker = new StkLatencyTracker();
+    private final StkTrace mTrace = new StkTrace();
+    private final StkMetrics mMetrics = new StkMetrics();
+    private final StkPayloadStore mPayloads = new StkPayloadStore(mMetrics);
+    // Counters indexed by command type ordinal.
+    private final StkMetrics.Counter[] mCmdsReceived = mMetrics.counters(
+            "cmd", AppInterface.CommandType.values());
+    // Tone player kept warm across PLAY TONE commands, main thread only.
+    private TonePlayer mTonePlayer = null;
+
     // Used for setting FLAG_ACTIVITY_NO_USER_ACTION when
     // creating an intent.
     private enum InitiatedByUserAction {
@@ -89,6 +104,17 @@ public class StkAppService extends Service implements Runnable {
     static final String INPUT = "input";
     static final String HELP = "help";
     static final String CONFIRMATION = "confirm";
+    static final String RESPONSE_TIME = "response time";
+    static final String RECEIVE_TIME = "receive time";
+    // Token of the payload in the service's StkPayloadStore.
+    static final String PAYLOAD = "payload";
+    // Sequence token of the command, returned in StkUserResponse.seq.
+    static final String SEQ = "seq";
+    // SIM slot of a command, session end or main menu, DEFAULT_SLOT if
+    // absent.
+    static final String SLOT = "slot";
+
+    static final long SEQ_NONE = StkSlotEngine.SEQ_NONE;
 
     // operations ids for different service functionality.
     static final int OP_CMD = 1;
@@ -96,18 +122,19 @@ public class StkAppService extends Service implements Runnable {
     static final int OP_LAUNCH_APP = 3;
     static final int OP_END_SESSION = 4;
     static final int OP_BOOT_COMPLETED = 5;
-    private static final int OP_DELAYED_MSG = 6;
+    private static final int OP_MENU_RESTORED = 6;
+    private static final int OP_TONE_STARTED = 7;
 
-    // Response ids
-    static final int RES_ID_MENU_SELECTION = 11;
-    static final int RES_ID_INPUT = 12;
-    static final int RES_ID_CONFIRM = 13;
-    static final int RES_ID_DONE = 14;
+    // Response ids, defined by StkCommands which maps them to result codes.
+    static final int RES_ID_MENU_SELECTION = StkCommands.RES_ID_MENU_SELECTION;
+    static final int RES_ID_INPUT = StkCommands.RES_ID_INPUT;
+    static final int RES_ID_CONFIRM = StkCommands.RES_ID_CONFIRM;
+    static final int RES_ID_DONE = StkCommands.RES_ID_DONE;
 
-    static final int RES_ID_TIMEOUT = 20;
-    static final int RES_ID_BACKWARD = 21;
-    static final int RES_ID_END_SESSION = 22;
-    static final int RES_ID_EXIT = 23;
+    static final int RES_ID_TIMEOUT = StkCommands.RES_ID_TIMEOUT;
+    static final int RES_ID_BACKWARD = StkCommands.RES_ID_BACKWARD;
+    static final int RES_ID_END_SESSION = StkCommands.RES_ID_END_SESSION;
+    static final int RES_ID_EXIT = StkCommands.RES_ID_EXIT;
 
     private static final String PACKAGE_NAME = "com.android.stk";
     private static final String MENU_ACTIVITY_NAME =
@@ -118,21 +145,17 @@ public class StkAppService extends Service implements Runnable {
     // Notification id used to display Idle Mode text in NotificationManager.
     private static final int STK_NOTIFICATION_ID = 333;
 
-    // Inner class used for queuing telephony messages (proactive commands,
-    // session end) while the service is busy processing a previous message.
-    private class DelayedCmd {
-        // members
-        int id;
-        StkCmdMessage msg;
-
-        DelayedCmd(int id, StkCmdMessage msg) {
-            this.id = id;
-            this.msg = msg;
-        }
-    }
+    // Delivery latency of user responses, indexed by DELIVERY_DIRECT and
+    // DELIVERY_INTENT. Only touched from the service thread.
+    private static final int DELIVERY_DIRECT = 0;
+    private static final int DELIVERY_INTENT = 1;
+    private final long[] mResponseCount = new long[2];
+    private final long[] mResponseLatencyTotal = new long[2];
+    private final long[] mResponseLatencyMax = new long[2];
 
     @Override
     public void onCreate() {
+        mCreateTime = SystemClock.elapsedRealtime();
         // Initialize members
         mStkService = com.android.internal.telephony.gsm.stk.StkService
                 .getInstance();
@@ -148,15 +171,116 @@ public class StkAppService extends Service implements Runnable {
             return;
         }
 
-        mCmdsQ = new LinkedList<DelayedCmd>();
-        Thread serviceThread = new Thread(null, this, "Stk App Service");
-        serviceThread.start();
+        // Everything run() relies on is set before the thread starts.
         mContext = getBaseContext();
         mNotificationManager = (NotificationManager) mContext
                 .getSystemService(Context.NOTIFICATION_SERVICE);
+        mIdleText = new StkIdleTextNotifier(mContext, mNotificationManager,
+                STK_NOTIFICATION_ID);
+        Thread serviceThread = new Thread(null, this, "Stk App Service");
+        serviceThread.start();
+        mIoThread = new HandlerThread("Stk App Io");
+        mIoThread.start();
+        mIoHandler = new Handler(mIoThread.getLooper());
+        mIoHandler.post(mRestoreMenu);
+        registerGauges();
+        if (StkApp.getStatsInterval() > 0) {
+            mIoHandler.postDelayed(mWriteStats, StkApp.getStatsInterval());
+        }
         sInstance = this;
     }
 
+    private void registerGauges() {
+        mMetrics.gauge("queue.depth", new StkMetrics.Gauge() {
+            public long get() {
+                long depth = 0;
+                for (StkSlotEngine engine : getEngines()) {
+                    depth += engine.getCmdQueue().size();
+                }
+                return depth;
+            }
+        });
+        mMetrics.gauge("queue.high_water_mark", new StkMetrics.Gauge() {
+            public long get() {
+                long mark = 0;
+                for (StkSlotEngine engine : getEngines()) {
+                    mark = Math.max(mark, engine.getCmdQueue().getHighWaterMark());
+                }
+                return mark;
+            }
+        });
+        mMetrics.gauge("installer.applied", new StkMetrics.Gauge() {
+            public long get() {
+                return StkAppInstaller.getAppliedCount();
+            }
+        });
+        mMetrics.gauge("installer.skipped", new StkMetrics.Gauge() {
+            public long get() {
+                return StkAppInstaller.getSkippedCount();
+            }
+        });
+        mMetrics.gauge("installer.coalesced", new StkMetrics.Gauge() {
+            public long get() {
+                return StkAppInstaller.getCoalescedCount();
+            }
+        });
+        mMetrics.gauge("icon.bytes", new StkMetrics.Gauge() {
+            public long get() {
+                return StkIconCache.getInstance(mContext).getBytes();
+            }
+        });
+        mMetrics.gauge("responses.stale", new StkMetrics.Gauge() {
+            public long get() {
+                long stale = 0;
+                for (StkSlotEngine engine : getEngines()) {
+                    stale += engine.getStaleResponses();
+                }
+                return stale;
+            }
+        });
+        mMetrics.gauge("responses.duplicate", new StkMetrics.Gauge() {
+            public long get() {
+                long duplicate = 0;
+                for (StkSlotEngine engine : getEngines()) {
+                    duplicate += engine.getDuplicateResponses();
+                }
+                return duplicate;
+            }
+        });
+    }
+
+    // Appends the metrics to the stats file, and reschedules itself. Runs on
+    // the I/O thread.
+    private final Runnable mWriteStats = new Runnable() {
+        public void run() {
+            mMetrics.writeStats(mContext);
+            int interval = StkApp.getStatsInterval();
+            if (interval > 0) {
+                mIoHandler.postDelayed(this, interval);
+            }
+        }
+    };
+
+    // Loads the main menu snapshot of the current SIM and hands it to the
+    // service thread. Only the default slot's SIM is known by its serial.
+    private final Runnable mRestoreMenu = new Runnable() {
+        public void run() {
+            Menu menu = StkMenuStore.load(mContext, getSimId());
+            if (menu == null) {
+                return;
+            }
+            waitForLooper();
+            Message msg = mServiceHandler.obtainMessage();
+            msg.arg1 = OP_MENU_RESTORED;
+            msg.obj = menu;
+            mServiceHandler.sendMessage(msg);
+        }
+    };
+
+    private String getSimId() {
+        return TelephonyManager.getDefault().getSimSerialNumber();
+    }
+
     @Override
     public void onStart(Intent intent, int startId) {
         waitForLooper();
@@ -175,13 +299,19 @@ public class StkAppService extends Service implements Runnable {
 
         Message msg = mServiceHandler.obtainMessage();
         msg.arg1 = args.getInt(OPCODE);
+        msg.arg2 = args.getInt(SLOT, StkSlotEngine.DEFAULT_SLOT);
         switch(msg.arg1) {
         case OP_CMD:
             msg.obj = args.getParcelable(CMD_MSG);
+            mTrace.record(StkTrace.EV_RECEIVED,
+                    ((StkCmdMessage) msg.obj).getCmdType(), 0);
+            mCmdsReceived[((StkCmdMessage) msg.obj).getCmdType().ordinal()].inc();
+            mLatencyTracker.onReceived((StkCmdMessage) msg.obj,
+                    args.getLong(RECEIVE_TIME, SystemClock.elapsedRealtime()));
             break;
         case OP_RESPONSE:
-            msg.obj = args;
-            /* falls through */
+            msg.obj = fromBundle(args);
+            break;
         case OP_LAUNCH_APP:
         case OP_END_SESSION:
         case OP_BOOT_COMPLETED:
@@ -192,10 +322,36 @@ public class StkAppService extends Service implements Runnable {
         mServiceHandler.sendMessage(msg);
     }
 
+    // Tells the idle text notifier about screen state changes, runs on the
+    // service thread.
+    private final BroadcastReceiver mScreenReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mIdleText.setScreenOn(Intent.ACTION_SCREEN_ON.equals(intent.getAction()));
+        }
+    };
+
     @Override
     public void onDestroy() {
+        sInstance = null;
+        if (mTonePlayer != null) {
+            mTonePlayer.release();
+        }
+        if (mIoThread == null) {
+            // onCreate() found no toolkit service, no thread was started.
+            return;
+        }
         waitForLooper();
+        unregisterReceiver(mScreenReceiver);
         mServiceLooper.quit();
+        mIoHandler.removeCallbacks(mWriteStats);
+        // Looper.quit() drops whatever is queued, e.g. a main menu save,
+        // quit behind it instead.
+        mIoHandler.post(new Runnable() {
+            public void run() {
+                mIoThread.quit();
+            }
+        });
     }
 
     @Override
@@ -207,23 +363,102 @@ public class StkAppService extends Service implements Runnable {
         Looper.prepare();
 
         mServiceLooper = Looper.myLooper();
-        mServiceHandler = new ServiceHandler();
+        // Published only once everything it relies on is set up.
+        ServiceHandler handler = new ServiceHandler();
+        // This telephony layer exposes the toolkit of a single SIM.
+        StkSlotEngine[] engines = new StkSlotEngine[1];
+        engines[StkSlotEngine.DEFAULT_SLOT] = new StkSlotEngine(
+                StkSlotEngine.DEFAULT_SLOT, mStkService, handler, mHost, mTrace,
+                mLatencyTracker, mMetrics, mCreateTime);
+        mEngines = engines;
+        mEventMessages = new StkEventMessagePresenter(mContext, handler);
+
+        PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        mIdleText.setScreenOn(pm.isScreenOn());
+        IntentFilter screenFilter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+        screenFilter.addAction(Intent.ACTION_SCREEN_OFF);
+        registerReceiver(mScreenReceiver, screenFilter, null, handler);
+
+        mTimeToReady = SystemClock.elapsedRealtime() - mCreateTime;
+        StkLog.d(this, "Service ready in " + mTimeToReady + " ms");
+        mServiceHandler = handler;
+        mServiceReady.countDown();
 
         Looper.loop();
     }
 
     /*
-     * Package api used by StkMenuActivity to indicate if its on the foreground.
+     * Package api used by StkMenuActivity to indicate if its on the
+     * foreground.
      */
-    void indicateMenuVisibility(boolean visibility) {
-        mMenuIsVisibile = visibility;
+    void indicateMenuVisibility(int slot, boolean visibility) {
+        StkSlotEngine engine = getEngine(slot);
+        if (engine != null) {
+            engine.indicateMenuVisibility(visibility);
+        }
     }
 
     /*
      * Package api used by StkMenuActivity to get its Menu parameter.
      */
-    Menu getMenu() {
-        return mCurrentMenu;
+    Menu getMenu(int slot) {
+        StkSlotEngine engine = getEngine(slot);
+        return (engine != null) ? engine.getMenu() : null;
+    }
+
+    /*
+     * Package api used by StkMenuActivity to get the item index of a menu,
+     * see StkSlotEngine.getMenuIndex().
+     */
+    StkMenuIndex getMenuIndex(int slot, Menu menu) {
+        StkSlotEngine engine = getEngine(slot);
+        return (engine != null) ? engine.getMenuIndex(menu)
+                : new StkMenuIndex(menu);
+    }
+
+    /*
+     * Package api used by StkMenuActivity to get the sequence token of the
+     * main menu.
+     */
+    long getMainMenuSeq(int slot) {
+        StkSlotEngine engine = getEngine(slot);
+        return (engine != null) ? engine.getMainMenuSeq() : SEQ_NONE;
+    }
+
+    /*
+     * Package api returning the engine of a slot, null if the slot has no
+     * toolkit or the service thread isn't ready yet.
+     */
+    StkSlotEngine getEngine(int slot) {
+        StkSlotEngine[] engines = mEngines;
+        if (engines == null || slot < 0 || slot >= engines.length) {
+            return null;
+        }
+        return engines[slot];
+    }
+
+    // Returns the engines of the slots with a toolkit.
+    private Iterable<StkSlotEngine> getEngines() {
+        StkSlotEngine[] engines = mEngines;
+        ArrayList<StkSlotEngine> list = new ArrayList<StkSlotEngine>();
+        if (engines != null) {
+            for (StkSlotEngine engine : engines) {
+                if (engine != null) {
+                    list.add(engine);
+                }
+            }
+        }
+        return list;
+    }
+
+    // Returns true if any slot has a main menu to show in the launcher.
+    private boolean hasMainMenu() {
+        for (StkSlotEngine engine : getEngines()) {
+            if (engine.hasMainMenu()) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /*
@@ -234,15 +469,225 @@ public class StkAppService extends Service implements Runnable {
         return sInstance;
     }
 
+    /*
+     * Package api returning the time in ms it took from onCreate() until the
+     * service thread was able to handle messages, -1 while not yet ready.
+     */
+    long getTimeToReady() {
+        return mTimeToReady;
+    }
+
+    /*
+     * Package api returning the time in ms from onCreate() until the first
+     * proactive command was handled, -1 if none arrived yet.
+     */
+    long getTimeToFirstCmd() {
+        return mTimeToFirstCmd;
+    }
+
+    /*
+     * Package api returning the idle mode text notifier, for its counters.
+     */
+    StkIdleTextNotifier getIdleTextNotifier() {
+        return mIdleText;
+    }
+
+    /*
+     * Package api returning the SEND_* event message presenter, for its
+     * counters.
+     */
+    StkEventMessagePresenter getEventMessagePresenter() {
+        return mEventMessages;
+    }
+
+    /*
+     * Package api used by UI Activities and Dialogs to deliver the user's
+     * response. While the service runs in this process the response is posted
+     * straight to the service thread, otherwise it goes through
+     * startService().
+     */
+    static void sendResponse(Context context, StkUserResponse response) {
+        StkAppService service = sInstance;
+        ServiceHandler handler = (service != null) ? service.mServiceHandler : null;
+        if (service != null) {
+            service.mLatencyTracker.onUserResponse();
+        }
+        if (handler != null) {
+            response.direct = true;
+            Message msg = handler.obtainMessage();
+            msg.arg1 = OP_RESPONSE;
+            msg.obj = response;
+            handler.sendMessage(msg);
+            return;
+        }
+        context.startService(new Intent(context, StkAppService.class)
+                .putExtras(toBundle(response)));
+    }
+
+    private static StkUserResponse fromBundle(Bundle args) {
+        StkUserResponse response = new StkUserResponse(args.getInt(RES_ID),
+                args.getLong(RESPONSE_TIME, System.nanoTime()));
+        response.menuSelection = args.getInt(MENU_SELECTION);
+        response.input = args.getString(INPUT);
+        response.help = args.getBoolean(HELP, false);
+        response.confirmed = args.getBoolean(CONFIRMATION);
+        response.seq = args.getLong(SEQ, SEQ_NONE);
+        return response;
+    }
+
+    private static Bundle toBundle(StkUserResponse response) {
+        Bundle args = new Bundle();
+        args.putInt(OPCODE, OP_RESPONSE);
+        args.putInt(RES_ID, response.resId);
+        args.putInt(MENU_SELECTION, response.menuSelection);
+        if (response.input != null) {
+            args.putString(INPUT, response.input);
+        }
+        args.putBoolean(HELP, response.help);
+        args.putBoolean(CONFIRMATION, response.confirmed);
+        args.putLong(SEQ, response.seq);
+        args.putLong(RESPONSE_TIME, response.createTime);
+        return args;
+    }
+
+    /*
+     * Package api used by the UI element showing the command with the given
+     * sequence token to be notified of its timeout, see
+     * StkSlotEngine.setTimeoutListener().
+     */
+    static void setTimeoutListener(long seq, StkSlotEngine.TimeoutListener listener) {
+        StkSlotEngine engine = getEngineOf(seq);
+        if (engine != null) {
+            engine.setTimeoutListener(listener);
+        }
+    }
+
+    static void clearTimeoutListener(long seq,
+            StkSlotEngine.TimeoutListener listener) {
+        StkSlotEngine engine = getEngineOf(seq);
+        if (engine != null) {
+            engine.clearTimeoutListener(listener);
+        }
+    }
+
+    /*
+     * Package api used by StkInputActivity to push the timeout of the
+     * command with the given sequence token back while the user is typing.
+     */
+    static void extendTimeout(long seq) {
+        StkSlotEngine engine = getEngineOf(seq);
+        if (engine != null) {
+            engine.extendTimeout();
+        }
+    }
+
+    // Returns the engine of the slot a sequence token belongs to, null if
+    // there is none (yet).
+    private static StkSlotEngine getEngineOf(long seq) {
+        StkAppService service = sInstance;
+        return (service != null)
+                ? service.getEngine(StkSlotEngine.slotOf(seq)) : null;
+    }
+
+    /*
+     * Package api used by UI Activities and Dialogs to report that their
+     * content is on screen. Reported once the first frame has been laid out.
+     */
+    static void notifyDisplayed(Activity activity) {
+        activity.getWindow().getDecorView().post(sDisplayedReporter);
+    }
+
+    private static final Runnable sDisplayedReporter = new Runnable() {
+        public void run() {
+            StkAppService service = sInstance;
+            if (service != null) {
+                service.mLatencyTracker.onDisplayed();
+            }
+        }
+    };
+
+    /*
+     * Package api used by ToneDialog to get the service's tone player. Must
+     * be called on the main thread.
+     */
+    TonePlayer getTonePlayer() {
+        if (mTonePlayer == null) {
+            mTonePlayer = new TonePlayer();
+        }
+        return mTonePlayer;
+    }
+
+    /*
+     * Package api used by ToneDialog to report that it started the tone of
+     * the command with the given sequence token, audible is false if the
+     * tone failed to play. The tone's duration runs from here.
+     */
+    static void notifyToneStarted(long seq, boolean audible) {
+        StkAppService service = sInstance;
+        if (service == null) {
+            return;
+        }
+        if (audible) {
+            service.mLatencyTracker.onAudible();
+        }
+        service.waitForLooper();
+        Message msg = service.mServiceHandler.obtainMessage();
+        msg.arg1 = OP_TONE_STARTED;
+        msg.obj = seq;
+        service.mServiceHandler.sendMessage(msg);
+    }
+
+    /*
+     * Package api returning the per command type latency tracker.
+     */
+    StkLatencyTracker getLatencyTracker() {
+        return mLatencyTracker;
+    }
+
+    /*
+     * Package api returning the average/max response delivery latency of the
+     * direct and the startService() paths.
+     */
+    String getResponseLatencyStats() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = DELIVERY_DIRECT; i <= DELIVERY_INTENT; i++) {
+            long count = mResponseCount[i];
+            sb.append(i == DELIVERY_DIRECT ? "direct" : "intent");
+            sb.append(" n=").append(count);
+            sb.append(" avg=").append(count == 0 ? 0
+                    : mResponseLatencyTotal[i] / count / 1000).append("us");
+            sb.append(" max=").append(mResponseLatencyMax[i] / 1000).append("us ");
+        }
+        return sb.toString();
+    }
+
+    private void recordResponseLatency(StkUserResponse response) {
+        int path = response.direct ? DELIVERY_DIRECT : DELIVERY_INTENT;
+        long latency = System.nanoTime() - response.createTime;
+        mResponseCount[path]++;
+        mResponseLatencyTotal[path] += latency;
+        if (latency > mResponseLatencyMax[path]) {
+            mResponseLatencyMax[path] = latency;
+        }
+    }
+
+    /*
+     * Blocks the caller until the service thread has finished its setup and
+     * published mServiceHandler. Returns immediately once it has.
+     */
     private void waitForLooper() {
-        while (mServiceHandler == null) {
-            synchronized (this) {
-                try {
-                    wait(100);
-                } catch (InterruptedException e) {
-                }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mServiceReady.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
             }
         }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     private final class ServiceHandler extends Handler {
@@ -252,400 +697,267 @@ public class StkAppService extends Service implements Runnable {
 
             switch (opcode) {
             case OP_LAUNCH_APP:
-                if (mMainCmd == null) {
-                    // nothing todo when no SET UP MENU command didn't arrive.
-                    return;
+                StkSlotEngine engine = getSlotEngine(msg.arg2);
+                if (engine != null) {
+                    engine.launchMainMenu();
                 }
-                launchMenuActivity(null);
                 break;
             case OP_CMD:
                 StkCmdMessage cmdMsg = (StkCmdMessage) msg.obj;
-                // There are two types of commands:
-                // 1. Interactive - user's response is required.
-                // 2. Informative - display a message, no interaction with the user.
-                //
-                // Informative commands can be handled immediately without any delay.
-                // Interactive commands can't override each other. So if a command
-                // is already in progress, we need to queue the next command until
-                // the user has responded or a timeout expired.
-                if (!isCmdInteractive(cmdMsg)) {
-                    handleCmd(cmdMsg);
-                } else {
-                    if (!mCmdInProgress) {
-                        mCmdInProgress = true;
-                        handleCmd((StkCmdMessage) msg.obj);
-                    } else {
-                        mCmdsQ.addLast(new DelayedCmd(OP_CMD,
-                                (StkCmdMessage) msg.obj));
-                    }
+                if (mTimeToFirstCmd < 0) {
+                    mTimeToFirstCmd = SystemClock.elapsedRealtime() - mCreateTime;
+                    StkLog.d(this, "First command after " + mTimeToFirstCmd + " ms");
+                }
+                engine = getSlotEngine(msg.arg2);
+                if (engine != null) {
+                    engine.onCmd(cmdMsg);
                 }
                 break;
             case OP_RESPONSE:
-                if (responseNeeded) {
-                    handleCmdResponse((Bundle) msg.obj);
+                StkUserResponse response = (StkUserResponse) msg.obj;
+                recordResponseLatency(response);
+                engine = getSlotEngine(StkSlotEngine.slotOf(response.seq));
+                if (engine != null) {
+                    engine.onResponse(response);
                 }
-                // call delayed commands if needed.
-                if (mCmdsQ.size() != 0) {
-                    callDelayedMsg();
-                } else {
-                    mCmdInProgress = false;
-                }
-                // reset response needed state var to its original value.
-                responseNeeded = true;
                 break;
             case OP_END_SESSION:
-                if (!mCmdInProgress) {
-                    mCmdInProgress = true;
-                    handleSessionEnd();
-                } else {
-                    mCmdsQ.addLast(new DelayedCmd(OP_END_SESSION, null));
+                engine = getSlotEngine(msg.arg2);
+                if (engine != null) {
+                    engine.onSessionEnd();
                 }
                 break;
             case OP_BOOT_COMPLETED:
-                StkLog.d(this, "OP_BOOT_COMPLETED");
-                if (mMainCmd == null) {
+                mTrace.record(StkTrace.EV_BOOT_COMPLETED, null, 0);
+                if (!hasMainMenu()) {
                     StkAppInstaller.unInstall(mContext);
                 }
                 break;
-            case OP_DELAYED_MSG:
-                handleDelayedCmd();
+            case OP_MENU_RESTORED:
+                mEngines[StkSlotEngine.DEFAULT_SLOT].onMenuRestored((Menu) msg.obj);
+                break;
+            case OP_TONE_STARTED:
+                long seq = (Long) msg.obj;
+                engine = getSlotEngine(StkSlotEngine.slotOf(seq));
+                if (engine != null) {
+                    engine.onToneStarted(seq);
+                }
                 break;
             }
         }
-    }
 
-    private boolean isCmdInteractive(StkCmdMessage cmd) {
-        switch (cmd.getCmdType()) {
-        case SEND_DTMF:
-        case SEND_SMS:
-        case SEND_SS:
-        case SEND_USSD:
-        case SET_UP_IDLE_MODE_TEXT:
-        case SET_UP_MENU:
-            return false;
+        // Returns the engine of the slot, null after logging if there is
+        // none.
+        private StkSlotEngine getSlotEngine(int slot) {
+            StkSlotEngine engine = getEngine(slot);
+            if (engine == null) {
+                StkLog.d(this, "No toolkit in slot " + slot + ", dropped");
+            }
+            return engine;
         }
+    }
+
+    /*
+     * Package api used by the UI to keep a payload in the service, e.g. in
+     * its saved state. Returns the token to resolve it with getPayload().
+     */
+    long putPayload(Object payload) {
+        return mPayloads.put(payload);
+    }
 
-        return true;
+    /*
+     * Package api used by the UI to resolve the payload token passed in its
+     * Intent or saved state. Returns null if the payload is gone, e.g. when
+     * the service was restarted.
+     */
+    static Object getPayload(long token) {
+        StkAppService service = sInstance;
+        return (service != null) ? service.mPayloads.get(token) : null;
     }
 
-    private void handleDelayedCmd() {
-        if (mCmdsQ.size() != 0) {
-            DelayedCmd cmd = mCmdsQ.poll();
-            switch (cmd.id) {
-            case OP_CMD:
-                handleCmd(cmd.msg);
-                break;
-            case OP_END_SESSION:
-                handleSessionEnd();
-                break;
-            }
-        }
+    StkPayloadStore getPayloadStore() {
+        return mPayloads;
     }
 
-    private void callDelayedMsg() {
-        Message msg = mServiceHandler.obtainMessage();
-        msg.arg1 = OP_DELAYED_MSG;
-        mServiceHandler.sendMessage(msg);
+    /*
+     * Package api returning the command path event trace.
+     */
+    StkTrace getTrace() {
+        return mTrace;
+    }
+
+    StkMetrics getMetrics() {
+        return mMetrics;
     }
 
-    private void handleSessionEnd() {
-        mCurrentCmd = mMainCmd;
-        lastSelectedItem = null;
-        // In case of SET UP MENU command which removed the app, don't
-        // update the current menu member.
-        if (mCurrentMenu != null && mMainCmd != null) {
-            mCurrentMenu = mMainCmd.getMenu();
+    /*
+     * Prints the metrics and the diagnostics of every component. State
+     * owned by the service thread is read without stopping it, so a dump
+     * taken during a session may be slightly inconsistent.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("StkAppService startup ms: ready=" + mTimeToReady
+                + " firstCmd=" + mTimeToFirstCmd);
+        mMetrics.dump(pw);
+        if (mEngines == null) {
+            // No toolkit service, nothing else was started.
+            return;
         }
-        if (mMenuIsVisibile) {
-            launchMenuActivity(null);
+        pw.println("Responses: " + getResponseLatencyStats());
+        pw.println("Installer: " + StkAppInstaller.dumpState());
+        pw.println("Icon cache: " + StkIconCache.getInstance(mContext));
+        pw.println("Idle text: " + mIdleText);
+        pw.println("Event messages: " + mEventMessages);
+        pw.println("Payloads: " + mPayloads);
+        for (StkSlotEngine engine : getEngines()) {
+            engine.dump(pw);
         }
-        if (mCmdsQ.size() != 0) {
-            callDelayedMsg();
-        } else {
-            mCmdInProgress = false;
+        mLatencyTracker.dump(pw);
+        mTrace.dump(pw);
+    }
+
+    // What the engines share, called on the service thread.
+    private final StkSlotEngine.Host mHost = new StkSlotEngine.Host() {
+        public void launchMenu(StkSlotEngine engine, Menu menu) {
+            launchMenuActivity(engine, menu);
         }
-        // In case a launch browser command was just confirmed, launch that url.
-        if (launchBrowser) {
-            launchBrowser = false;
-            launchBrowser(mBrowserSettings);
+
+        public void launchInput(StkSlotEngine engine, Input input) {
+            launchInputActivity(engine, input);
         }
-    }
 
-    private void handleCmd(StkCmdMessage cmdMsg) {
-        if (cmdMsg == null) {
-            return;
+        public void launchTextDialog(StkSlotEngine engine, TextMessage msg) {
+            StkAppService.this.launchTextDialog(engine, msg);
         }
-        // save local reference for state tracking.
-        mCurrentCmd = cmdMsg;
-        boolean waitForUsersResponse = true;
-
-        StkLog.d(this, cmdMsg.getCmdType().name());
-        switch (cmdMsg.getCmdType()) {
-        case DISPLAY_TEXT:
-            TextMessage msg = cmdMsg.geTextMessage();
-            responseNeeded = msg.responseNeeded;
-            if (lastSelectedItem != null) {
-                msg.title = lastSelectedItem;
-            } else if (mMainCmd != null){
-                msg.title = mMainCmd.getMenu().title;
-            } else {
-                // TODO: get the carrier name from the SIM
-                msg.title = "";
-            }
-            launchTextDialog();
-            break;
-        case SELECT_ITEM:
-            mCurrentMenu = cmdMsg.getMenu();
-            launchMenuActivity(cmdMsg.getMenu());
-            break;
-        case SET_UP_MENU:
-            mMainCmd = mCurrentCmd;
-            mCurrentMenu = cmdMsg.getMenu();
-            if (removeMenu()) {
-                StkLog.d(this, "Uninstall App");
-                mCurrentMenu = null;
-                StkAppInstaller.unInstall(mContext);
-            } else {
-                StkLog.d(this, "Install App");
-                StkAppInstaller.install(mContext);
-            }
-            if (mMenuIsVisibile) {
-                launchMenuActivity(null);
-            }
-            break;
-        case GET_INPUT:
-        case GET_INKEY:
-            launchInputActivity();
-            break;
-        case SET_UP_IDLE_MODE_TEXT:
-            waitForUsersResponse = false;
-            launchIdleText();
-            break;
-        case SEND_DTMF:
-        case SEND_SMS:
-        case SEND_SS:
-        case SEND_USSD:
-            waitForUsersResponse = false;
-            launchEventMessage();
-            break;
-        case LAUNCH_BROWSER:
-            launchConfirmationDialog(mCurrentCmd.geTextMessage());
-            break;
-        case SET_UP_CALL:
-            launchConfirmationDialog(mCurrentCmd.getCallSettings().confirmMsg);
-            break;
-        case PLAY_TONE:
-            launchToneDialog();
-            break;
+
+        public void launchConfirmationDialog(StkSlotEngine engine,
+                TextMessage msg) {
+            StkAppService.this.launchConfirmationDialog(engine, msg);
         }
 
-        if (!waitForUsersResponse) {
-            if (mCmdsQ.size() != 0) {
-                callDelayedMsg();
-            } else {
-                mCmdInProgress = false;
-            }
+        public void launchToneDialog(StkSlotEngine engine, StkCmdMessage cmd) {
+            StkAppService.this.launchToneDialog(engine, cmd);
         }
-    }
 
-    private void handleCmdResponse(Bundle args) {
-        if (mCurrentCmd == null) {
-            return;
+        public void launchBrowser(BrowserSettings settings) {
+            StkAppService.this.launchBrowser(settings);
         }
-        StkResponseMessage resMsg = new StkResponseMessage(mCurrentCmd);
-
-        // set result code
-        boolean helpRequired = args.getBoolean(HELP, false);
-
-        switch(args.getInt(RES_ID)) {
-        case RES_ID_MENU_SELECTION:
-            StkLog.d(this, "RES_ID_MENU_SELECTION");
-            int menuSelection = args.getInt(MENU_SELECTION);
-            switch(mCurrentCmd.getCmdType()) {
-            case SET_UP_MENU:
-            case SELECT_ITEM:
-                lastSelectedItem = getItemName(menuSelection);
-                if (helpRequired) {
-                    resMsg.setResultCode(ResultCode.HELP_INFO_REQUIRED);
-                } else {
-                    resMsg.setResultCode(ResultCode.OK);
-                }
-                resMsg.setMenuSelection(menuSelection);
-                break;
-            }
-            break;
-        case RES_ID_INPUT:
-            StkLog.d(this, "RES_ID_INPUT");
-            String input = args.getString(INPUT);
-            if (mCurrentCmd.geInput().yesNo) {
-                boolean yesNoSelection = input
-                        .equals(StkInputActivity.YES_STR_RESPONSE);
-                resMsg.setYesNo(yesNoSelection);
+
+        public void showCallMessage(TextMessage msg) {
+            launchCallMsg(msg);
+        }
+
+        public void showIdleText(TextMessage msg) {
+            mIdleText.update(msg);
+        }
+
+        public void showEventMessage(TextMessage msg) {
+            mEventMessages.show(msg);
+        }
+
+        public void onMainMenuChanged(StkSlotEngine engine) {
+            if (hasMainMenu()) {
+                StkAppInstaller.install(mContext);
             } else {
-                if (helpRequired) {
-                    resMsg.setResultCode(ResultCode.HELP_INFO_REQUIRED);
-                } else {
-                    resMsg.setResultCode(ResultCode.OK);
-                    resMsg.setInput(input);
-                }
-            }
-            break;
-        case RES_ID_CONFIRM:
-            StkLog.d(this, "RES_ID_CONFIRM");
-            boolean confirmed = args.getBoolean(CONFIRMATION);
-            switch (mCurrentCmd.getCmdType()) {
-            case DISPLAY_TEXT:
-                resMsg.setResultCode(confirmed ? ResultCode.OK
-                        : ResultCode.UICC_SESSION_TERM_BY_USER);
-                break;
-            case LAUNCH_BROWSER:
-                resMsg.setResultCode(confirmed ? ResultCode.OK
-                        : ResultCode.UICC_SESSION_TERM_BY_USER);
-                if (confirmed) {
-                    launchBrowser = true;
-                    mBrowserSettings = mCurrentCmd.getBrowserSettings();
-                }
-                break;
-            case SET_UP_CALL:
-                resMsg.setResultCode(ResultCode.OK);
-                resMsg.setConfirmation(confirmed);
-                if (confirmed) {
-                    launchCallMsg();
-                }
-                break;
+                StkAppInstaller.unInstall(mContext);
             }
-            break;
-        case RES_ID_DONE:
-            resMsg.setResultCode(ResultCode.OK);
-            break;
-        case RES_ID_BACKWARD:
-            StkLog.d(this, "RES_ID_BACKWARD");
-            resMsg.setResultCode(ResultCode.BACKWARD_MOVE_BY_USER);
-            break;
-        case RES_ID_END_SESSION:
-            StkLog.d(this, "RES_ID_END_SESSION");
-            resMsg.setResultCode(ResultCode.UICC_SESSION_TERM_BY_USER);
-            break;
-        case RES_ID_TIMEOUT:
-            StkLog.d(this, "RES_ID_TIMEOUT");
-            // GCF test-case 27.22.4.1.1 Expected Sequence 1.5 (DISPLAY TEXT,
-            // Clear message after delay, successful) expects result code OK.
-            // If the command qualifier specifies no user response is required
-            // then send OK instead of NO_RESPONSE_FROM_USER
-            if ((mCurrentCmd.getCmdType().value() == AppInterface.CommandType.DISPLAY_TEXT
-                    .value())
-                    && (mCurrentCmd.geTextMessage().userClear == false)) {
-                resMsg.setResultCode(ResultCode.OK);
-            } else {
-                resMsg.setResultCode(ResultCode.NO_RESPONSE_FROM_USER);
+        }
+
+        public void saveMainMenu(StkSlotEngine engine, final Menu menu) {
+            if (engine.getSlot() != StkSlotEngine.DEFAULT_SLOT) {
+                // The snapshot is keyed by the default slot's SIM.
+                return;
             }
-            break;
-        default:
-            StkLog.d(this, "Unknown result id");
-            return;
+            final String simId = getSimId();
+            mIoHandler.post(new Runnable() {
+                public void run() {
+                    if (menu == null) {
+                        StkMenuStore.delete(mContext);
+                    } else {
+                        StkMenuStore.save(mContext, simId, menu);
+                    }
+                }
+            });
         }
-        mStkService.onCmdResponse(resMsg);
-    }
+    };
 
     /**
      * Returns 0 or FLAG_ACTIVITY_NO_USER_ACTION, 0 means the user initiated the action.
      *
      * @param userAction If the userAction is yes then we always return 0 otherwise
-     * mMenuIsVisible is used to determine what to return. If mMenuIsVisible is true
-     * then we are the foreground app and we'll return 0 as from our perspective a
-     * user action did cause. If it's false than we aren't the foreground app and
-     * FLAG_ACTIVITY_NO_USER_ACTION is returned.
+     * the engine's menu visibility is used to determine what to return. If its menu
+     * is visible then we are the foreground app and we'll return 0 as from our
+     * perspective a user action did cause. If it's not than we aren't the foreground
+     * app and FLAG_ACTIVITY_NO_USER_ACTION is returned.
      *
      * @return 0 or FLAG_ACTIVITY_NO_USER_ACTION
      */
-    private int getFlagActivityNoUserAction(InitiatedByUserAction userAction) {
-        return ((userAction == InitiatedByUserAction.yes) | mMenuIsVisibile) ?
+    private int getFlagActivityNoUserAction(InitiatedByUserAction userAction,
+            StkSlotEngine engine) {
+        return ((userAction == InitiatedByUserAction.yes) | engine.isMenuVisible()) ?
                                                     0 : Intent.FLAG_ACTIVITY_NO_USER_ACTION;
     }
 
-    private void launchMenuActivity(Menu menu) {
+    private void launchMenuActivity(StkSlotEngine engine, Menu menu) {
         Intent newIntent = new Intent(Intent.ACTION_VIEW);
         newIntent.setClassName(PACKAGE_NAME, MENU_ACTIVITY_NAME);
         int intentFlags = Intent.FLAG_ACTIVITY_NEW_TASK
                 | Intent.FLAG_ACTIVITY_CLEAR_TOP;
         if (menu == null) {
             // We assume this was initiated by the user pressing the tool kit icon
-            intentFlags |= getFlagActivityNoUserAction(InitiatedByUserAction.yes);
+            intentFlags |= getFlagActivityNoUserAction(InitiatedByUserAction.yes,
+                    engine);
 
             newIntent.putExtra("STATE", StkMenuActivity.STATE_MAIN);
+            newIntent.putExtra(SEQ, engine.getMainMenuSeq());
         } else {
             // We don't know and we'll let getFlagActivityNoUserAction decide.
-            intentFlags |= getFlagActivityNoUserAction(InitiatedByUserAction.unknown);
+            intentFlags |= getFlagActivityNoUserAction(InitiatedByUserAction.unknown,
+                    engine);
 
             newIntent.putExtra("STATE", StkMenuActivity.STATE_SECONDARY);
+            newIntent.putExtra(SEQ, engine.getCurrentSeq());
         }
+        newIntent.putExtra(SLOT, engine.getSlot());
         newIntent.setFlags(intentFlags);
         mContext.startActivity(newIntent);
     }
 
-    private void launchInputActivity() {
+    private void launchInputActivity(StkSlotEngine engine, Input input) {
         Intent newIntent = new Intent(Intent.ACTION_VIEW);
         newIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK
-                            | getFlagActivityNoUserAction(InitiatedByUserAction.unknown));
+                | getFlagActivityNoUserAction(InitiatedByUserAction.unknown, engine));
         newIntent.setClassName(PACKAGE_NAME, INPUT_ACTIVITY_NAME);
-        newIntent.putExtra("INPUT", mCurrentCmd.geInput());
+        newIntent.putExtra(PAYLOAD, mPayloads.put(input));
+        newIntent.putExtra(SEQ, engine.getCurrentSeq());
         mContext.startActivity(newIntent);
     }
 
-    private void launchTextDialog() {
+    private void launchTextDialog(StkSlotEngine engine, TextMessage msg) {
         Intent newIntent = new Intent(this, StkDialogActivity.class);
         newIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK
                 | Intent.FLAG_ACTIVITY_MULTIPLE_TASK
                 | Intent.FLAG_ACTIVITY_NO_HISTORY
                 | Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS
-                | getFlagActivityNoUserAction(InitiatedByUserAction.unknown));
-        newIntent.putExtra("TEXT", mCurrentCmd.geTextMessage());
+                | getFlagActivityNoUserAction(InitiatedByUserAction.unknown, engine));
+        newIntent.putExtra(PAYLOAD, mPayloads.put(msg));
+        newIntent.putExtra(SEQ, engine.getCurrentSeq());
         startActivity(newIntent);
     }
 
-    private void launchEventMessage() {
-        TextMessage msg = mCurrentCmd.geTextMessage();
-        if (msg == null || msg.text == null) {
-            return;
-        }
-        Toast toast = new Toast(mContext.getApplicationContext());
-        LayoutInflater inflate = (LayoutInflater) mContext
-                .getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-        View v = inflate.inflate(R.layout.stk_event_msg, null);
-        TextView tv = (TextView) v
-                .findViewById(com.android.internal.R.id.message);
-        ImageView iv = (ImageView) v
-                .findViewById(com.android.internal.R.id.icon);
-        if (msg.icon != null) {
-            iv.setImageBitmap(msg.icon);
-        } else {
-            iv.setVisibility(View.GONE);
-        }
-        if (!msg.iconSelfExplanatory) {
-            tv.setText(msg.text);
-        }
-
-        toast.setView(v);
-        toast.setDuration(Toast.LENGTH_LONG);
-        toast.setGravity(Gravity.BOTTOM, 0, 0);
-        toast.show();
-    }
-
-    private void launchConfirmationDialog(TextMessage msg) {
-        msg.title = lastSelectedItem;
+    private void launchConfirmationDialog(StkSlotEngine engine, TextMessage msg) {
         Intent newIntent = new Intent(this, StkDialogActivity.class);
         newIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK
                 | Intent.FLAG_ACTIVITY_NO_HISTORY
                 | Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS
-                | getFlagActivityNoUserAction(InitiatedByUserAction.unknown));
-        newIntent.putExtra("TEXT", msg);
+                | getFlagActivityNoUserAction(InitiatedByUserAction.unknown, engine));
+        newIntent.putExtra(PAYLOAD, mPayloads.put(msg));
+        newIntent.putExtra(SEQ, engine.getCurrentSeq());
         startActivity(newIntent);
     }
 
     private void launchBrowser(BrowserSettings settings) {
-        if (settings == null) {
-            return;
-        }
         // Set browser launch mode
         Intent intent = new Intent();
         intent.setClassName("com.android.browser",
@@ -673,96 +985,24 @@ public class StkAppService extends Service implements Runnable {
         }
         // start browser activity
         startActivity(intent);
-        // a small delay, let the browser start, before processing the next command.
-        // this is good for scenarios where a related DISPLAY TEXT command is
-        // followed immediately.
-        try {
-            Thread.sleep(10000);
-        } catch (InterruptedException e) {}
     }
 
-    private void launchCallMsg() {
-        TextMessage msg = mCurrentCmd.getCallSettings().callMsg;
-        if (msg.text == null || msg.text.length() == 0) {
-            return;
-        }
-        msg.title = lastSelectedItem;
-
+    private void launchCallMsg(TextMessage msg) {
         Toast toast = Toast.makeText(mContext.getApplicationContext(), msg.text,
                 Toast.LENGTH_LONG);
         toast.setGravity(Gravity.BOTTOM, 0, 0);
         toast.show();
     }
 
-    private void launchIdleText() {
-        TextMessage msg = mCurrentCmd.geTextMessage();
-        if (msg.text == null) {
-            mNotificationManager.cancel(STK_NOTIFICATION_ID);
-        } else {
-            Notification notification = new Notification();
-            RemoteViews contentView = new RemoteViews(
-                    PACKAGE_NAME,
-                    com.android.internal.R.layout.status_bar_latest_event_content);
-
-            notification.flags |= Notification.FLAG_NO_CLEAR;
-            notification.icon = com.android.internal.R.drawable.stat_notify_sim_toolkit;
-            // Set text and icon for the status bar and notification body.
-            if (!msg.iconSelfExplanatory) {
-                notification.tickerText = msg.text;
-                contentView.setTextViewText(com.android.internal.R.id.text,
-                        msg.text);
-            }
-            if (msg.icon != null) {
-                contentView.setImageViewBitmap(com.android.internal.R.id.icon,
-                        msg.icon);
-            } else {
-                contentView
-                        .setImageViewResource(
-                                com.android.internal.R.id.icon,
-                                com.android.internal.R.drawable.stat_notify_sim_toolkit);
-            }
-            notification.contentView = contentView;
-            notification.contentIntent = PendingIntent.getService(mContext, 0,
-                    new Intent(mContext, StkAppService.class), 0);
-
-            mNotificationManager.notify(STK_NOTIFICATION_ID, notification);
-        }
-    }
-
-    private void launchToneDialog() {
+    private void launchToneDialog(StkSlotEngine engine, StkCmdMessage cmd) {
         Intent newIntent = new Intent(this, ToneDialog.class);
         newIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK
                 | Intent.FLAG_ACTIVITY_NO_HISTORY
                 | Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS
-                | getFlagActivityNoUserAction(InitiatedByUserAction.unknown));
-        newIntent.putExtra("TEXT", mCurrentCmd.geTextMessage());
-        newIntent.putExtra("TONE", mCurrentCmd.getToneSettings());
+                | getFlagActivityNoUserAction(InitiatedByUserAction.unknown, engine));
+        // The tone dialog needs both the text and the tone settings.
+        newIntent.putExtra(PAYLOAD, mPayloads.put(cmd));
+        newIntent.putExtra(SEQ, engine.getCurrentSeq());
         startActivity(newIntent);
     }
-
-    private String getItemName(int itemId) {
-        Menu menu = mCurrentCmd.getMenu();
-        if (menu == null) {
-            return null;
-        }
-        for (Item item : menu.items) {
-            if (item.id == itemId) {
-                return item.text;
-            }
-        }
-        return null;
-    }
-
-    private boolean removeMenu() {
-        try {
-            if (mCurrentMenu.items.size() == 1 &&
-                mCurrentMenu.items.get(0) == null) {
-                return true;
-            }
-        } catch (NullPointerException e) {
-            StkLog.d(this, "Unable to get Menu's items size");
-            return true;
-        }
-        return false;
-    }
 }
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.stk;
+
+import android.os.SystemClock;
+
+import com.android.internal.telephony.gsm.stk.AppInterface;
+import com.android.internal.telephony.gsm.stk.StkCmdMessage;
+import com.android.internal.telephony.gsm.stk.TextMessage;
+
+/**
+ * Bounded queue used by StkAppService for telephony messages (proactive
+ * commands, session end) that arrive while a previous interactive command is
+ * still in progress.
+ *
+ * Entries are kept in one ring buffer per priority class, so offer and poll
+ * are O(1). Polling always returns the oldest entry of the most urgent
+ * non-empty class. The queue is only accessed from the service thread and is
+ * not synchronized.
+ */
+final class StkCmdQueue {
+    // Priority classes, most urgent first.
+    static final int PRIORITY_SESSION_END = 0;
+    static final int PRIORITY_HIGH = 1;
+    static final int PRIORITY_NORMAL = 2;
+    private static final int PRIORITY_CLASSES = 3;
+
+    /**
+     * A queued telephony message.
+     */
+    static final class Entry {
+        final int id;
+        final StkCmdMessage msg;
+        final int priority;
+        final long enqueueTime;
+
+        Entry(int id, StkCmdMessage msg, int priority, long enqueueTime) {
+            this.id = id;
+            this.msg = msg;
+            this.priority = priority;
+            this.enqueueTime = enqueueTime;
+        }
+    }
+
+    private final int mCapacity;
+    private final Entry[][] mRings;
+    private final int[] mHeads = new int[PRIORITY_CLASSES];
+    private final int[] mCounts = new int[PRIORITY_CLASSES];
+    private int mSize = 0;
+
+    // Statistics
+    private int mHighWaterMark = 0;
+    private long mEnqueued = 0;
+    private long mDequeued = 0;
+    private long mRejected = 0;
+    private long mLastWait = 0;
+    private long mMaxWait = 0;
+    private long mTotalWait = 0;
+
+    StkCmdQueue(int capacity) {
+        if (capacity < 1) {
+            capacity = 1;
+        }
+        mCapacity = capacity;
+        mRings = new Entry[PRIORITY_CLASSES][capacity];
+    }
+
+    /**
+     * Returns the priority class a message belongs to. Session ends are the
+     * only messages queued without a command.
+     */
+    static int priorityOf(StkCmdMessage msg) {
+        if (msg == null) {
+            return PRIORITY_SESSION_END;
+        }
+        if (msg.getCmdType() == AppInterface.CommandType.DISPLAY_TEXT) {
+            TextMessage text = msg.geTextMessage();
+            if (text != null && text.isHighPriority) {
+                return PRIORITY_HIGH;
+            }
+        }
+        return PRIORITY_NORMAL;
+    }
+
+    /**
+     * Appends a message to the tail of its priority class. Commands share
+     * the queue's capacity, session ends have a ring of their own, so a
+     * queue full of commands never turns a session end away.
+     *
+     * @return false if the queue is full and the message was not queued.
+     */
+    boolean offer(int id, StkCmdMessage msg) {
+        int priority = priorityOf(msg);
+        int used = (priority == PRIORITY_SESSION_END) ? mCounts[priority]
+                : mSize - mCounts[PRIORITY_SESSION_END];
+        if (used == mCapacity) {
+            mRejected++;
+            return false;
+        }
+        Entry[] ring = mRings[priority];
+        int tail = (mHeads[priority] + mCounts[priority]) % mCapacity;
+        ring[tail] = new Entry(id, msg, priority, SystemClock.elapsedRealtime());
+        mCounts[priority]++;
+        mSize++;
+        mEnqueued++;
+        if (mSize > mHighWaterMark) {
+            mHighWaterMark = mSize;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if a message of the given priority class is queued.
+     */
+    boolean contains(int priority) {
+        return mCounts[priority] != 0;
+    }
+
+    /**
+     * Returns the next entry without removing it, or null if empty.
+     */
+    Entry peek() {
+        for (int p = 0; p < PRIORITY_CLASSES; p++) {
+            if (mCounts[p] != 0) {
+                return mRings[p][mHeads[p]];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes and returns the next entry, or null if empty.
+     */
+    Entry poll() {
+        for (int p = 0; p < PRIORITY_CLASSES; p++) {
+            if (mCounts[p] != 0) {
+                Entry[] ring = mRings[p];
+                Entry entry = ring[mHeads[p]];
+                ring[mHeads[p]] = null;
+                mHeads[p] = (mHeads[p] + 1) % mCapacity;
+                mCounts[p]--;
+                mSize--;
+                mDequeued++;
+
+                long wait = SystemClock.elapsedRealtime() - entry.enqueueTime;
+                mLastWait = wait;
+                mTotalWait += wait;
+                if (wait > mMaxWait) {
+                    mMaxWait = wait;
+                }
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the entry of the given command, wherever it is queued.
+     *
+     * @return false if the command isn't queued.
+     */
+    boolean remove(StkCmdMessage msg) {
+        for (int p = 0; p < PRIORITY_CLASSES; p++) {
+            Entry[] ring = mRings[p];
+            int count = mCounts[p];
+            for (int n = 0; n < count; n++) {
+                int i = (mHeads[p] + n) % mCapacity;
+                if (ring[i].msg != msg) {
+                    continue;
+                }
+                // Close the gap, keeping the order of the later entries.
+                for (int m = n + 1; m < count; m++) {
+                    int next = (mHeads[p] + m) % mCapacity;
+                    ring[i] = ring[next];
+                    i = next;
+                }
+                ring[i] = null;
+                mCounts[p]--;
+                mSize--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    int capacity() {
+        return mCapacity;
+    }
+
+    int getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    long getEnqueuedCount() {
+        return mEnqueued;
+    }
+
+    long getRejectedCount() {
+        return mRejected;
+    }
+
+    /**
+     * Time in ms the most recently polled entry spent in the queue.
+     */
+    long getLastWait() {
+        return mLastWait;
+    }
+
+    long getMaxWait() {
+        return mMaxWait;
+    }
+
+    long getAverageWait() {
+        return mDequeued == 0 ? 0 : mTotalWait / mDequeued;
+    }
+
+    @Override
+    public String toString() {
+        return "depth=" + mSize + "/" + mCapacity
+                + " hwm=" + mHighWaterMark
+                + " enqueued=" + mEnqueued
+                + " rejected=" + mRejected
+                + " wait(last/avg/max)=" + mLastWait + "/" + getAverageWait()
+                + "/" + mMaxWait + "ms";
+    }
+}
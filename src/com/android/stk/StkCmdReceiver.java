@@ -22,6 +22,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.SystemClock;
 
 /**
  * Receiver class to get STK intents, broadcasted by telephony layer.
@@ -45,6 +46,8 @@ public class StkCmdReceiver extends BroadcastReceiver {
         args.putInt(StkAppService.OPCODE, StkAppService.OP_CMD);
         args.putParcelable(StkAppService.CMD_MSG, intent
                 .getParcelableExtra("STK CMD"));
+        args.putLong(StkAppService.RECEIVE_TIME, SystemClock.elapsedRealtime());
+        putSlot(args, intent);
         context.startService(new Intent(context, StkAppService.class)
                 .putExtras(args));
     }
@@ -52,7 +55,17 @@ public class StkCmdReceiver extends BroadcastReceiver {
     private void handleSessionEnd(Context context, Intent intent) {
         Bundle args = new Bundle();
         args.putInt(StkAppService.OPCODE, StkAppService.OP_END_SESSION);
+        putSlot(args, intent);
         context.startService(new Intent(context, StkAppService.class)
                 .putExtras(args));
     }
+
+    // Forwards the SIM slot of the broadcast, if it names one. The service
+    // assumes the default slot otherwise.
+    private void putSlot(Bundle args, Intent intent) {
+        if (intent.hasExtra(StkAppService.SLOT)) {
+            args.putInt(StkAppService.SLOT, intent.getIntExtra(StkAppService.SLOT,
+                    StkSlotEngine.DEFAULT_SLOT));
+        }
+    }
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.stk;
+
+import com.android.internal.telephony.gsm.stk.AppInterface;
+import com.android.internal.telephony.gsm.stk.ResultCode;
+
+/**
+ * Stateless rules used on the command path of StkAppService: command
+ * classification and the mapping of UI response ids to terminal response
+ * result codes.
+ *
+ * Kept free of service state, and of the service class itself, so the rules
+ * can be exercised in isolation.
+ */
+abstract class StkCommands {
+    private StkCommands() {}
+
+    // Response ids of the UI elements, also known as StkAppService.RES_ID_*.
+    static final int RES_ID_MENU_SELECTION = 11;
+    static final int RES_ID_INPUT = 12;
+    static final int RES_ID_CONFIRM = 13;
+    static final int RES_ID_DONE = 14;
+
+    static final int RES_ID_TIMEOUT = 20;
+    static final int RES_ID_BACKWARD = 21;
+    static final int RES_ID_END_SESSION = 22;
+    static final int RES_ID_EXIT = 23;
+
+    // Input of yes/no GET INKEY commands, also known as
+    // StkInputActivity.*_STR_RESPONSE.
+    static final String YES_STR_RESPONSE = "YES";
+    static final String NO_STR_RESPONSE = "NO";
+
+    /**
+     * Returns true if the command type requires interaction with the user,
+     * i.e. a response from a UI element before the next one can be shown.
+     */
+    static boolean isInteractive(AppInterface.CommandType type) {
+        switch (type) {
+        case SEND_DTMF:
+        case SEND_SMS:
+        case SEND_SS:
+        case SEND_USSD:
+        case SET_UP_IDLE_MODE_TEXT:
+        case SET_UP_MENU:
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Maps a UI response to the result code of the terminal response.
+     *
+     * @param type Type of the command being responded to.
+     * @param resId One of the RES_ID_* values.
+     * @param help True if the user asked for help.
+     * @param confirmed True if the user confirmed, for RES_ID_CONFIRM.
+     * @param yesNo True if the command is a yes/no GET INKEY.
+     * @param clearAfterDelay True for a DISPLAY TEXT that doesn't wait for
+     *        the user to clear it.
+     * @return the result code, or null if the response message default
+     *         result code should be kept.
+     */
+    static ResultCode resultCodeFor(AppInterface.CommandType type, int resId,
+            boolean help, boolean confirmed, boolean yesNo,
+            boolean clearAfterDelay) {
+        switch (resId) {
+        case RES_ID_MENU_SELECTION:
+            switch (type) {
+            case SET_UP_MENU:
+            case SELECT_ITEM:
+                return help ? ResultCode.HELP_INFO_REQUIRED : ResultCode.OK;
+            }
+            return null;
+        case RES_ID_INPUT:
+            if (yesNo) {
+                return null;
+            }
+            return help ? ResultCode.HELP_INFO_REQUIRED : ResultCode.OK;
+        case RES_ID_CONFIRM:
+            switch (type) {
+            case DISPLAY_TEXT:
+            case LAUNCH_BROWSER:
+                return confirmed ? ResultCode.OK
+                        : ResultCode.UICC_SESSION_TERM_BY_USER;
+            case SET_UP_CALL:
+                return ResultCode.OK;
+            }
+            return null;
+        case RES_ID_DONE:
+            return ResultCode.OK;
+        case RES_ID_BACKWARD:
+            return ResultCode.BACKWARD_MOVE_BY_USER;
+        case RES_ID_END_SESSION:
+            return ResultCode.UICC_SESSION_TERM_BY_USER;
+        case RES_ID_TIMEOUT:
+            if (type == AppInterface.CommandType.PLAY_TONE) {
+                // The end of the tone answers PLAY TONE, it only times out if
+                // the tone never played.
+                return ResultCode.TERMINAL_CRNTLY_UNABLE_TO_PROCESS;
+            }
+            // GCF test-case 27.22.4.1.1 Expected Sequence 1.5 (DISPLAY TEXT,
+            // Clear message after delay, successful) expects result code OK.
+            // If the command qualifier specifies no user response is required
+            // then send OK instead of NO_RESPONSE_FROM_USER
+            return clearAfterDelay ? ResultCode.OK
+                    : ResultCode.NO_RESPONSE_FROM_USER;
+        }
+        return null;
+    }
+}
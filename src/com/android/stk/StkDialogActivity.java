@@ -22,8 +22,6 @@ import android.app.Activity;
 import android.content.Intent;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
 import android.view.KeyEvent;
 import android.view.View;
 import android.view.Window;
@@ -38,23 +36,23 @@ public class StkDialogActivity extends Activity implements View.OnClickListener
     // members
     TextMessage mTextMsg;
 
-    Handler mTimeoutHandler = new Handler() {
-        @Override
-        public void handleMessage(Message msg) {
-            switch(msg.what) {
-            case MSG_ID_TIMEOUT:
-                sendResponse(StkAppService.RES_ID_TIMEOUT);
-                finish();
-                break;
-            }
+    // The service sends the timeout response, the dialog only closes.
+    private final StkSlotEngine.TimeoutListener mTimeoutListener =
+            new StkSlotEngine.TimeoutListener() {
+        public void onCmdTimeout() {
+            runOnUiThread(new Runnable() {
+                public void run() {
+                    finish();
+                }
+            });
         }
     };
 
-    //keys) for saving the state of the dialog in the icicle
-    private static final String TEXT = "text";
+    // Token of mTextMsg in the service's payload store.
+    private long mPayload = 0;
 
-    // message id for time out
-    private static final int MSG_ID_TIMEOUT = 1;
+    // Sequence token of the command, returned with the response.
+    private long mSeq = StkAppService.SEQ_NONE;
 
     // buttons id
     public static final int OK_BUTTON = R.id.button_ok;
@@ -93,7 +91,8 @@ public class StkDialogActivity extends Activity implements View.OnClickListener
                     com.android.internal.R.drawable.stat_notify_sim_toolkit);
         } else {
             window.setFeatureDrawable(Window.FEATURE_LEFT_ICON,
-                    new BitmapDrawable(mTextMsg.icon));
+                    new BitmapDrawable(StkIconCache.getInstance(this)
+                            .get(mTextMsg.icon)));
         }
     }
 
@@ -127,6 +126,7 @@ public class StkDialogActivity extends Activity implements View.OnClickListener
     public void onResume() {
         super.onResume();
 
+        StkAppService.notifyDisplayed(this);
         startTimeOut();
     }
 
@@ -141,22 +141,29 @@ public class StkDialogActivity extends Activity implements View.OnClickListener
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
 
-        outState.putParcelable(TEXT, mTextMsg);
+        outState.putLong(StkAppService.PAYLOAD, mPayload);
+        outState.putLong(StkAppService.SEQ, mSeq);
     }
 
     @Override
     public void onRestoreInstanceState(Bundle savedInstanceState) {
         super.onRestoreInstanceState(savedInstanceState);
 
-        mTextMsg = savedInstanceState.getParcelable(TEXT);
+        mPayload = savedInstanceState.getLong(StkAppService.PAYLOAD);
+        mTextMsg = (TextMessage) StkAppService.getPayload(mPayload);
+        if (mTextMsg == null) {
+            // The command is gone along with its payload.
+            finish();
+        }
+        mSeq = savedInstanceState.getLong(StkAppService.SEQ,
+                StkAppService.SEQ_NONE);
     }
 
     private void sendResponse(int resId, boolean confirmed) {
-        Bundle args = new Bundle();
-        args.putInt(StkAppService.OPCODE, StkAppService.OP_RESPONSE);
-        args.putInt(StkAppService.RES_ID, resId);
-        args.putBoolean(StkAppService.CONFIRMATION, confirmed);
-        startService(new Intent(this, StkAppService.class).putExtras(args));
+        StkUserResponse response = new StkUserResponse(resId);
+        response.confirmed = confirmed;
+        response.seq = mSeq;
+        StkAppService.sendResponse(this, response);
     }
 
     private void sendResponse(int resId) {
@@ -166,24 +173,21 @@ public class StkDialogActivity extends Activity implements View.OnClickListener
     private void initFromIntent(Intent intent) {
 
         if (intent != null) {
-            mTextMsg = intent.getParcelableExtra("TEXT");
+            mPayload = intent.getLongExtra(StkAppService.PAYLOAD, 0);
+            mTextMsg = (TextMessage) StkAppService.getPayload(mPayload);
+            mSeq = intent.getLongExtra(StkAppService.SEQ,
+                    StkAppService.SEQ_NONE);
         } else {
             finish();
         }
     }
 
     private void cancelTimeOut() {
-        mTimeoutHandler.removeMessages(MSG_ID_TIMEOUT);
+        StkAppService.clearTimeoutListener(mSeq, mTimeoutListener);
     }
 
     private void startTimeOut() {
-        // Reset timeout.
-        cancelTimeOut();
-        int dialogDuration = StkApp.calculateDurationInMilis(mTextMsg.duration);
-        if (dialogDuration == 0) {
-            dialogDuration = StkApp.UI_TIMEOUT;
-        }
-        mTimeoutHandler.sendMessageDelayed(mTimeoutHandler
-                .obtainMessage(MSG_ID_TIMEOUT), dialogDuration);
+        // The dialog duration is scheduled by the service.
+        StkAppService.setTimeoutListener(mSeq, mTimeoutListener);
     }
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.stk;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.view.Gravity;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.widget.ImageView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.android.internal.telephony.gsm.stk.TextMessage;
+
+/**
+ * Shows the alpha identifiers of the informative SEND SMS, SEND SS, SEND
+ * USSD and SEND DTMF commands.
+ *
+ * A single toast and view are reused for all messages. The toast is updated
+ * at most once per MIN_INTERVAL; messages arriving in between are kept in a
+ * bounded backlog and merged into a rolling display of the last
+ * VISIBLE_LINES messages. A burst of commands therefore costs one view
+ * update per interval. Used from the service thread only, which must have a
+ * Looper.
+ */
+final class StkEventMessagePresenter {
+    // Minimum time between two toast updates.
+    private static final int MIN_INTERVAL = 500;
+    // Time after which the toast is gone and the display starts over,
+    // matches Toast.LENGTH_LONG.
+    private static final int DISPLAY_TIME = 3500;
+    private static final int VISIBLE_LINES = 3;
+    private static final int BACKLOG = 8;
+
+    private final Context mContext;
+    private final Handler mHandler;
+
+    private Toast mToast = null;
+    private TextView mTextView = null;
+    private ImageView mIconView = null;
+
+    // Messages not displayed yet, oldest first.
+    private final TextMessage[] mBacklog = new TextMessage[BACKLOG];
+    private int mBacklogHead = 0;
+    private int mBacklogSize = 0;
+
+    // Lines currently displayed, oldest first.
+    private final String[] mLines = new String[VISIBLE_LINES];
+    private int mLineCount = 0;
+    private final StringBuilder mText = new StringBuilder();
+
+    private long mLastShown = 0;
+    private boolean mFlushPending = false;
+
+    // Statistics
+    private long mReceived = 0;
+    private long mShown = 0;
+    private long mMerged = 0;
+    private long mDropped = 0;
+
+    private final Runnable mFlush = new Runnable() {
+        public void run() {
+            mFlushPending = false;
+            flush();
+        }
+    };
+
+    StkEventMessagePresenter(Context context, Handler handler) {
+        mContext = context;
+        mHandler = handler;
+    }
+
+    void show(TextMessage msg) {
+        if (msg == null || msg.text == null) {
+            return;
+        }
+        mReceived++;
+        if (mBacklogSize == BACKLOG) {
+            // Drop the oldest message.
+            mBacklog[mBacklogHead] = null;
+            mBacklogHead = (mBacklogHead + 1) % BACKLOG;
+            mBacklogSize--;
+            mDropped++;
+        }
+        mBacklog[(mBacklogHead + mBacklogSize) % BACKLOG] = msg;
+        mBacklogSize++;
+
+        if (mFlushPending) {
+            return;
+        }
+        long next = mLastShown + MIN_INTERVAL;
+        if (SystemClock.uptimeMillis() >= next) {
+            flush();
+        } else {
+            mFlushPending = true;
+            mHandler.postAtTime(mFlush, next);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "received=" + mReceived + " shown=" + mShown
+                + " merged=" + mMerged + " dropped=" + mDropped
+                + " backlog=" + mBacklogSize;
+    }
+
+    private void flush() {
+        if (mBacklogSize == 0) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (now - mLastShown > DISPLAY_TIME) {
+            mLineCount = 0;
+        }
+        mMerged += mBacklogSize - 1;
+
+        Bitmap icon = null;
+        while (mBacklogSize > 0) {
+            TextMessage msg = mBacklog[mBacklogHead];
+            mBacklog[mBacklogHead] = null;
+            mBacklogHead = (mBacklogHead + 1) % BACKLOG;
+            mBacklogSize--;
+            if (msg.icon != null) {
+                icon = msg.icon;
+            }
+            if (msg.icon == null || !msg.iconSelfExplanatory) {
+                addLine(msg.text);
+            }
+        }
+
+        if (mToast == null) {
+            createToast();
+        }
+        mText.setLength(0);
+        for (int i = 0; i < mLineCount; i++) {
+            if (i > 0) {
+                mText.append('\n');
+            }
+            mText.append(mLines[i]);
+        }
+        mTextView.setText(mText.toString());
+        if (icon != null) {
+            mIconView.setImageBitmap(StkIconCache.getInstance(mContext).get(icon));
+            mIconView.setVisibility(View.VISIBLE);
+        } else {
+            mIconView.setVisibility(View.GONE);
+        }
+        mToast.show();
+        mShown++;
+        mLastShown = now;
+    }
+
+    private void addLine(String line) {
+        if (mLineCount == VISIBLE_LINES) {
+            System.arraycopy(mLines, 1, mLines, 0, VISIBLE_LINES - 1);
+            mLineCount--;
+        }
+        mLines[mLineCount++] = line;
+    }
+
+    private void createToast() {
+        LayoutInflater inflate = (LayoutInflater) mContext
+                .getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+        View v = inflate.inflate(R.layout.stk_event_msg, null);
+        mTextView = (TextView) v.findViewById(com.android.internal.R.id.message);
+        mIconView = (ImageView) v.findViewById(com.android.internal.R.id.icon);
+        mToast = new Toast(mContext.getApplicationContext());
+        mToast.setView(v);
+        mToast.setDuration(Toast.LENGTH_LONG);
+        mToast.setGravity(Gravity.BOTTOM, 0, 0);
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.stk;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * In-memory cache for the icons carried by STK commands (menu items, menu
+ * titles, text messages, input prompts).
+ *
+ * SIM icons are re-delivered with every command, so icons are interned by
+ * content: identical pixels map to one shared bitmap, downsampled once to the
+ * size they are displayed at. Cached icons are evicted in LRU order once the
+ * byte budget is exceeded.
+ */
+final class StkIconCache {
+    private static StkIconCache sInstance;
+
+    // Content key of a cached icon.
+    private static final class Key {
+        final long hash;
+        final int width;
+        final int height;
+
+        Key(long hash, int width, int height) {
+            this.hash = hash;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && width == other.width
+                    && height == other.height;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (hash ^ (hash >>> 32)) * 31 + width * 17 + height;
+        }
+    }
+
+    private final int mTargetSize;
+    private final int mBudget;
+    private final LinkedHashMap<Key, Bitmap> mIcons =
+            new LinkedHashMap<Key, Bitmap>(16, 0.75f, true);
+    // Source bitmap instance to content key, saves hashing the pixels of a
+    // bitmap that was already seen.
+    private final WeakHashMap<Bitmap, Key> mKeys = new WeakHashMap<Bitmap, Key>();
+    private int mBytes = 0;
+
+    // Statistics
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mEvictions = 0;
+
+    private StkIconCache(int targetSize, int budget) {
+        mTargetSize = targetSize;
+        mBudget = budget;
+    }
+
+    static synchronized StkIconCache getInstance(Context context) {
+        if (sInstance == null) {
+            int targetSize = context.getResources().getDimensionPixelSize(
+                    android.R.dimen.app_icon_size);
+            sInstance = new StkIconCache(targetSize, StkApp.ICON_CACHE_BYTES);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the cached, display sized, copy of an icon. Returns null for a
+     * null icon.
+     */
+    synchronized Bitmap get(Bitmap icon) {
+        if (icon == null) {
+            return null;
+        }
+        Key key = mKeys.get(icon);
+        if (key == null) {
+            key = keyOf(icon);
+            mKeys.put(icon, key);
+        }
+        Bitmap cached = mIcons.get(key);
+        if (cached != null) {
+            mHits++;
+            return cached;
+        }
+        mMisses++;
+        cached = scale(icon);
+        mIcons.put(key, cached);
+        mBytes += sizeOf(cached);
+        trim();
+        return cached;
+    }
+
+    synchronized int getBytes() {
+        return mBytes;
+    }
+
+    synchronized long getHits() {
+        return mHits;
+    }
+
+    synchronized long getMisses() {
+        return mMisses;
+    }
+
+    synchronized long getEvictions() {
+        return mEvictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "icons=" + mIcons.size() + " bytes=" + mBytes + "/" + mBudget
+                + " hits=" + mHits + " misses=" + mMisses
+                + " evictions=" + mEvictions;
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<Key, Bitmap>> it = mIcons.entrySet().iterator();
+        // Always keep the most recent icon, even if it's over budget alone.
+        while (mBytes > mBudget && mIcons.size() > 1 && it.hasNext()) {
+            Bitmap evicted = it.next().getValue();
+            it.remove();
+            mBytes -= sizeOf(evicted);
+            mEvictions++;
+        }
+    }
+
+    private Bitmap scale(Bitmap icon) {
+        int width = icon.getWidth();
+        int height = icon.getHeight();
+        if (mTargetSize <= 0 || (width <= mTargetSize && height <= mTargetSize)) {
+            return icon;
+        }
+        // Downsample keeping the aspect ratio.
+        if (width >= height) {
+            height = Math.max(1, height * mTargetSize / width);
+            width = mTargetSize;
+        } else {
+            width = Math.max(1, width * mTargetSize / height);
+            height = mTargetSize;
+        }
+        return Bitmap.createScaledBitmap(icon, width, height, true);
+    }
+
+    private static Key keyOf(Bitmap icon) {
+        int width = icon.getWidth();
+        int height = icon.getHeight();
+        int[] pixels = new int[width * height];
+        icon.getPixels(pixels, 0, width, 0, 0, width, height);
+        // 64 bit FNV-1a over the pixels.
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < pixels.length; i++) {
+            hash ^= pixels[i];
+            hash *= 0x100000001b3L;
+        }
+        return new Key(hash, width, height);
+    }
+
+    private static int sizeOf(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
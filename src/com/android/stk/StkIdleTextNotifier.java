@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.stk;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.widget.RemoteViews;
+
+import com.android.internal.telephony.gsm.stk.TextMessage;
+
+/**
+ * Shows the SET UP IDLE MODE TEXT notification.
+ *
+ * The text and icon currently shown are remembered and updates that would
+ * not change them are skipped. While the screen is off nothing is posted,
+ * the latest update is kept and posted when the screen turns on. Used from
+ * the service thread only.
+ */
+final class StkIdleTextNotifier {
+    private final Context mContext;
+    private final NotificationManager mNotificationManager;
+    private final int mId;
+
+    // What the notification currently shows. Icons come from StkIconCache,
+    // which interns them by content, so they compare by identity.
+    private boolean mKnown = false;
+    private String mText = null;
+    private Bitmap mIcon = null;
+    private boolean mIconSelfExplanatory = false;
+
+    private boolean mScreenOn = true;
+    private TextMessage mPending = null;
+    private boolean mHasPending = false;
+
+    // Statistics
+    private long mPosted = 0;
+    private long mCancelled = 0;
+    private long mSkipped = 0;
+    private long mSuperseded = 0;
+
+    StkIdleTextNotifier(Context context, NotificationManager nm, int id) {
+        mContext = context;
+        mNotificationManager = nm;
+        mId = id;
+    }
+
+    /**
+     * Shows the idle mode text of the message, or removes it when the
+     * message has no text.
+     */
+    void update(TextMessage msg) {
+        if (!mScreenOn) {
+            if (mHasPending) {
+                mSuperseded++;
+            }
+            mPending = msg;
+            mHasPending = true;
+            return;
+        }
+        apply(msg);
+    }
+
+    void setScreenOn(boolean screenOn) {
+        mScreenOn = screenOn;
+        if (screenOn && mHasPending) {
+            TextMessage msg = mPending;
+            mPending = null;
+            mHasPending = false;
+            apply(msg);
+        }
+    }
+
+    long getPosted() {
+        return mPosted;
+    }
+
+    long getSkipped() {
+        return mSkipped;
+    }
+
+    long getSuperseded() {
+        return mSuperseded;
+    }
+
+    @Override
+    public String toString() {
+        return "posted=" + mPosted + " cancelled=" + mCancelled
+                + " skipped=" + mSkipped + " superseded=" + mSuperseded
+                + " pending=" + mHasPending + " screenOn=" + mScreenOn;
+    }
+
+    private void apply(TextMessage msg) {
+        String text = (msg != null) ? msg.text : null;
+        if (text == null) {
+            if (mKnown && mText == null) {
+                mSkipped++;
+                return;
+            }
+            mNotificationManager.cancel(mId);
+            mCancelled++;
+            remember(null, null, false);
+            return;
+        }
+        Bitmap icon = StkIconCache.getInstance(mContext).get(msg.icon);
+        if (mKnown && text.equals(mText) && icon == mIcon
+                && msg.iconSelfExplanatory == mIconSelfExplanatory) {
+            mSkipped++;
+            return;
+        }
+        mNotificationManager.notify(mId, build(text, icon, msg.iconSelfExplanatory));
+        mPosted++;
+        remember(text, icon, msg.iconSelfExplanatory);
+    }
+
+    private void remember(String text, Bitmap icon, boolean iconSelfExplanatory) {
+        mKnown = true;
+        mText = text;
+        mIcon = icon;
+        mIconSelfExplanatory = iconSelfExplanatory;
+    }
+
+    private Notification build(String text, Bitmap icon,
+            boolean iconSelfExplanatory) {
+        Notification notification = new Notification();
+        RemoteViews contentView = new RemoteViews(
+                mContext.getPackageName(),
+                com.android.internal.R.layout.status_bar_latest_event_content);
+
+        notification.flags |= Notification.FLAG_NO_CLEAR;
+        notification.icon = com.android.internal.R.drawable.stat_notify_sim_toolkit;
+        // Set text and icon for the status bar and notification body.
+        if (!iconSelfExplanatory) {
+            notification.tickerText = text;
+            contentView.setTextViewText(com.android.internal.R.id.text, text);
+        }
+        if (icon != null) {
+            contentView.setImageViewBitmap(com.android.internal.R.id.icon, icon);
+        } else {
+            contentView.setImageViewResource(com.android.internal.R.id.icon,
+                    com.android.internal.R.drawable.stat_notify_sim_toolkit);
+        }
+        notification.contentView = contentView;
+        notification.contentIntent = PendingIntent.getService(mContext, 0,
+                new Intent(mContext, StkAppService.class), 0);
+        return notification;
+    }
+}
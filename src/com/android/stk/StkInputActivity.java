@@ -21,8 +21,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
 import android.text.Editable;
 import android.text.InputFilter;
 import android.text.TextWatcher;
@@ -54,32 +52,30 @@ public class StkInputActivity extends Activity implements View.OnClickListener,
     private View mYesNoLayout = null;
     private View mNormalLayout = null;
     private Input mStkInput = null;
+    // Sequence token of the command, returned with the response.
+    private long mSeq = StkAppService.SEQ_NONE;
 
     // Constants
     private static final int STATE_TEXT = 1;
     private static final int STATE_YES_NO = 2;
 
-    static final String YES_STR_RESPONSE = "YES";
-    static final String NO_STR_RESPONSE = "NO";
+    static final String YES_STR_RESPONSE = StkCommands.YES_STR_RESPONSE;
+    static final String NO_STR_RESPONSE = StkCommands.NO_STR_RESPONSE;
 
     // Font size factor values.
     static final float NORMAL_FONT_FACTOR = 1;
     static final float LARGE_FONT_FACTOR = 2;
     static final float SMALL_FONT_FACTOR = (1 / 2);
 
-    // message id for time out
-    private static final int MSG_ID_TIMEOUT = 1;
-
-    Handler mTimeoutHandler = new Handler() {
-        @Override
-        public void handleMessage(Message msg) {
-            switch(msg.what) {
-            case MSG_ID_TIMEOUT:
-                //mAcceptUsersInput = false;
-                sendResponse(StkAppService.RES_ID_TIMEOUT);
-                finish();
-                break;
-            }
+    // The service sends the timeout response, the activity only closes.
+    private final StkSlotEngine.TimeoutListener mTimeoutListener =
+            new StkSlotEngine.TimeoutListener() {
+        public void onCmdTimeout() {
+            runOnUiThread(new Runnable() {
+                public void run() {
+                    finish();
+                }
+            });
         }
     };
 
@@ -136,7 +132,10 @@ public class StkInputActivity extends Activity implements View.OnClickListener,
         // display parameters.
         Intent intent = getIntent();
         if (intent != null) {
-            mStkInput = intent.getParcelableExtra("INPUT");
+            mStkInput = (Input) StkAppService.getPayload(
+                    intent.getLongExtra(StkAppService.PAYLOAD, 0));
+            mSeq = intent.getLongExtra(StkAppService.SEQ,
+                    StkAppService.SEQ_NONE);
             if (mStkInput == null) {
                 finish();
             } else {
@@ -160,6 +159,7 @@ public class StkInputActivity extends Activity implements View.OnClickListener,
     public void onResume() {
         super.onResume();
 
+        StkAppService.notifyDisplayed(this);
         startTimeOut();
     }
 
@@ -186,15 +186,11 @@ public class StkInputActivity extends Activity implements View.OnClickListener,
     }
 
     private void sendResponse(int resId, String input, boolean help) {
-        Bundle args = new Bundle();
-        args.putInt(StkAppService.OPCODE, StkAppService.OP_RESPONSE);
-        args.putInt(StkAppService.RES_ID, resId);
-        if (input != null) {
-            args.putString(StkAppService.INPUT, input);
-        }
-        args.putBoolean(StkAppService.HELP, help);
-        mContext.startService(new Intent(mContext, StkAppService.class)
-                .putExtras(args));
+        StkUserResponse response = new StkUserResponse(resId);
+        response.input = input;
+        response.help = help;
+        response.seq = mSeq;
+        StkAppService.sendResponse(mContext, response);
     }
 
     @Override
@@ -236,8 +232,9 @@ public class StkInputActivity extends Activity implements View.OnClickListener,
     }
 
     public void onTextChanged(CharSequence s, int start, int before, int count) {
-        // Reset timeout.
-        startTimeOut();
+        // Reset timeout. Only the deadline moves, the scheduler re-arms the
+        // timeout when it finds the deadline in the future.
+        StkAppService.extendTimeout(mSeq);
     }
 
     public void afterTextChanged(Editable s) {
@@ -253,13 +250,11 @@ public class StkInputActivity extends Activity implements View.OnClickListener,
     }
 
     private void cancelTimeOut() {
-        mTimeoutHandler.removeMessages(MSG_ID_TIMEOUT);
+        StkAppService.clearTimeoutListener(mSeq, mTimeoutListener);
     }
 
     private void startTimeOut() {
-        cancelTimeOut();
-        mTimeoutHandler.sendMessageDelayed(mTimeoutHandler
-                .obtainMessage(MSG_ID_TIMEOUT), StkApp.UI_TIMEOUT);
+        StkAppService.setTimeoutListener(mSeq, mTimeoutListener);
     }
 
     private void configInputDisplay() {
@@ -280,7 +275,7 @@ public class StkInputActivity extends Activity implements View.OnClickListener,
 
         if (mStkInput.icon != null) {
             setFeatureDrawable(Window.FEATURE_LEFT_ICON, new BitmapDrawable(
-                    mStkInput.icon));
+                    StkIconCache.getInstance(this).get(mStkInput.icon)));
         }
 
         // Handle specific global and text attributes.
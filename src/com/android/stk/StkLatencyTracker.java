@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.stk;
+
+import android.os.SystemClock;
+
+import com.android.internal.telephony.gsm.stk.AppInterface;
+import com.android.internal.telephony.gsm.stk.StkCmdMessage;
+
+import java.io.PrintWriter;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Tracks the life cycle of proactive commands, from the moment the telephony
+ * broadcast is received until the terminal response is handed back, and
+ * aggregates the time to reach each stage into per command type histograms.
+ *
+ * Methods are called from both the UI thread and the service thread and are
+ * synchronized.
+ */
+final class StkLatencyTracker {
+    // Command life cycle stages, in order.
+    static final int STAGE_RECEIVED = 0;
+    static final int STAGE_QUEUED = 1;
+    static final int STAGE_HANDLED = 2;
+    static final int STAGE_DISPLAYED = 3;
+    static final int STAGE_USER_RESPONSE = 4;
+    static final int STAGE_RESPONSE_SENT = 5;
+    // PLAY TONE only, the tone started playing.
+    static final int STAGE_AUDIBLE = 6;
+    private static final int STAGES = 7;
+
+    private static final String[] STAGE_NAMES = {
+        "received", "queued", "handled", "displayed", "user response",
+        "response sent", "audible"
+    };
+
+    // Upper bound to the number of commands traced at once. Once it is
+    // reached, the oldest trace is dropped for each new one.
+    private static final int MAX_TRACES = 32;
+
+    /**
+     * Fixed bucket latency histogram, in ms. Percentiles are reported as the
+     * upper bound of the bucket they fall in.
+     */
+    static final class Histogram {
+        private static final long[] BOUNDS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000,
+            20000, 30000, 60000, 120000, Long.MAX_VALUE
+        };
+
+        private final long[] mCounts = new long[BOUNDS.length];
+        private long mTotal = 0;
+        private long mMax = 0;
+
+        void add(long value) {
+            int i = 0;
+            while (value > BOUNDS[i]) {
+                i++;
+            }
+            mCounts[i]++;
+            mTotal++;
+            if (value > mMax) {
+                mMax = value;
+            }
+        }
+
+        long count() {
+            return mTotal;
+        }
+
+        /**
+         * Returns the value below which the given percent of the samples
+         * fall, 0 when empty.
+         */
+        long percentile(int percent) {
+            if (mTotal == 0) {
+                return 0;
+            }
+            long rank = (mTotal * percent + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return Math.min(BOUNDS[i], mMax);
+                }
+            }
+            return mMax;
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + mTotal + " p50=" + percentile(50)
+                    + " p95=" + percentile(95) + " p99=" + percentile(99)
+                    + " max=" + mMax;
+        }
+    }
+
+    private static final class Trace {
+        final StkCmdMessage cmd;
+        final AppInterface.CommandType type;
+        final long[] stamps = new long[STAGES];
+
+        Trace(StkCmdMessage cmd) {
+            this.cmd = cmd;
+            this.type = cmd.getCmdType();
+        }
+    }
+
+    private final Map<StkCmdMessage, Trace> mTraces =
+            new IdentityHashMap<StkCmdMessage, Trace>();
+    private final EnumMap<AppInterface.CommandType, Histogram[]> mHistograms =
+            new EnumMap<AppInterface.CommandType, Histogram[]>(
+                    AppInterface.CommandType.class);
+    private Trace mCurrent = null;
+    private long mDropped = 0;
+
+    /**
+     * Starts tracing a command received at the given elapsedRealtime().
+     */
+    synchronized void onReceived(StkCmdMessage cmd, long receiveTime) {
+        if (cmd == null || cmd.getCmdType() == null) {
+            return;
+        }
+        if (mTraces.size() >= MAX_TRACES) {
+            dropOldest();
+        }
+        Trace trace = new Trace(cmd);
+        trace.stamps[STAGE_RECEIVED] = receiveTime;
+        mTraces.put(cmd, trace);
+    }
+
+    synchronized void onQueued(StkCmdMessage cmd) {
+        Trace trace = mTraces.get(cmd);
+        if (trace != null) {
+            stamp(trace, STAGE_QUEUED);
+        }
+    }
+
+    /**
+     * Marks the command as handled. If it is now the current command, i.e.
+     * the one the UI shows, displayed and response stages are attributed to
+     * it; an informative command handled while another one is shown leaves
+     * the current trace alone.
+     */
+    synchronized void onHandled(StkCmdMessage cmd, boolean current) {
+        Trace trace = mTraces.get(cmd);
+        if (current) {
+            if (mCurrent != null && mCurrent != trace) {
+                // The previous command was superseded without a response.
+                complete(mCurrent);
+            }
+            mCurrent = trace;
+        }
+        if (trace != null) {
+            stamp(trace, STAGE_HANDLED);
+        }
+    }
+
+    synchronized void onDisplayed() {
+        if (mCurrent != null) {
+            stamp(mCurrent, STAGE_DISPLAYED);
+        }
+    }
+
+    synchronized void onAudible() {
+        if (mCurrent != null) {
+            stamp(mCurrent, STAGE_AUDIBLE);
+        }
+    }
+
+    synchronized void onUserResponse() {
+        if (mCurrent != null) {
+            stamp(mCurrent, STAGE_USER_RESPONSE);
+        }
+    }
+
+    synchronized void onResponseSent(StkCmdMessage cmd) {
+        Trace trace = mTraces.get(cmd);
+        if (trace != null) {
+            stamp(trace, STAGE_RESPONSE_SENT);
+            complete(trace);
+        }
+    }
+
+    /**
+     * Ends tracing of a command which will not get any (further) response.
+     */
+    synchronized void onFinished(StkCmdMessage cmd) {
+        Trace trace = mTraces.get(cmd);
+        if (trace != null) {
+            complete(trace);
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Command latency from reception, ms (dropped traces="
+                + mDropped + "):");
+        for (Map.Entry<AppInterface.CommandType, Histogram[]> e
+                : mHistograms.entrySet()) {
+            pw.println("  " + e.getKey().name() + ":");
+            Histogram[] histograms = e.getValue();
+            for (int stage = STAGE_QUEUED; stage < STAGES; stage++) {
+                if (histograms[stage].count() != 0) {
+                    pw.println("    " + STAGE_NAMES[stage] + ": "
+                            + histograms[stage]);
+                }
+            }
+        }
+    }
+
+    // Drops the trace received first, it's the least likely to complete.
+    private void dropOldest() {
+        Trace oldest = null;
+        for (Trace trace : mTraces.values()) {
+            if (oldest == null || trace.stamps[STAGE_RECEIVED]
+                    < oldest.stamps[STAGE_RECEIVED]) {
+                oldest = trace;
+            }
+        }
+        if (oldest != null) {
+            mTraces.remove(oldest.cmd);
+            if (mCurrent == oldest) {
+                mCurrent = null;
+            }
+            mDropped++;
+        }
+    }
+
+    private void stamp(Trace trace, int stage) {
+        // Only the first occurrence of a stage counts (e.g. first draw).
+        if (trace.stamps[stage] == 0) {
+            trace.stamps[stage] = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private void complete(Trace trace) {
+        mTraces.remove(trace.cmd);
+        if (mCurrent == trace) {
+            mCurrent = null;
+        }
+        Histogram[] histograms = mHistograms.get(trace.type);
+        if (histograms == null) {
+            histograms = new Histogram[STAGES];
+            for (int i = 0; i < STAGES; i++) {
+                histograms[i] = new Histogram();
+            }
+            mHistograms.put(trace.type, histograms);
+        }
+        long start = trace.stamps[STAGE_RECEIVED];
+        for (int stage = STAGE_QUEUED; stage < STAGES; stage++) {
+            if (trace.stamps[stage] != 0) {
+                histograms[stage].add(trace.stamps[stage] - start);
+            }
+        }
+    }
+}
@@ -20,8 +20,6 @@ import android.app.ListActivity;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
 import android.view.KeyEvent;
 import android.view.MenuItem;
 import android.view.View;
@@ -44,31 +42,38 @@ import com.android.internal.telephony.gsm.stk.StkLog;
 public class StkMenuActivity extends ListActivity {
     private Context mContext;
     private Menu mStkMenu = null;
+    // Token of mStkMenu in the service's payload store, 0 if none yet.
+    private long mPayload = 0;
+    private StkMenuIndex mMenuIndex = null;
+    // Menu currently bound to the list adapter and title views.
+    private Menu mDisplayedMenu = null;
     private int mState = STATE_MAIN;
+    // Sequence token of the command the displayed menu answers.
+    private long mSeq = StkAppService.SEQ_NONE;
+    // SIM slot whose menu is displayed.
+    private int mSlot = StkSlotEngine.DEFAULT_SLOT;
     private boolean mAcceptUsersInput = true;
 
     private TextView mTitleTextView = null;
     private ImageView mTitleIconView = null;
     private ProgressBar mProgressView = null;
 
-    StkAppService appService = StkAppService.getInstance();
+    StkAppService appService = null;
 
     // Internal state values
     static final int STATE_MAIN = 1;
     static final int STATE_SECONDARY = 2;
 
-    // message id for time out
-    private static final int MSG_ID_TIMEOUT = 1;
-
-    Handler mTimeoutHandler = new Handler() {
-        @Override
-        public void handleMessage(Message msg) {
-            switch(msg.what) {
-            case MSG_ID_TIMEOUT:
-                mAcceptUsersInput = false;
-                sendResponse(StkAppService.RES_ID_TIMEOUT);
-                break;
-            }
+    // The service sends the timeout response of SELECT ITEM menus, only
+    // further input needs to be blocked here.
+    private final StkSlotEngine.TimeoutListener mTimeoutListener =
+            new StkSlotEngine.TimeoutListener() {
+        public void onCmdTimeout() {
+            runOnUiThread(new Runnable() {
+                public void run() {
+                    mAcceptUsersInput = false;
+                }
+            });
         }
     };
 
@@ -129,7 +134,6 @@ public class StkMenuActivity extends ListActivity {
         case KeyEvent.KEYCODE_BACK:
             switch (mState) {
             case STATE_SECONDARY:
-                cancelTimeOut();
                 mAcceptUsersInput = false;
                 sendResponse(StkAppService.RES_ID_BACKWARD);
                 return true;
@@ -145,13 +149,24 @@ public class StkMenuActivity extends ListActivity {
     public void onResume() {
         super.onResume();
 
-        appService.indicateMenuVisibility(true);
-        mStkMenu = appService.getMenu();
+        // The service instance is resolved lazily, it may not have existed
+        // yet when this activity was constructed.
+        if (appService == null) {
+            appService = StkAppService.getInstance();
+        }
+        if (appService == null) {
+            finish();
+            return;
+        }
+        appService.indicateMenuVisibility(mSlot, true);
+        mStkMenu = appService.getMenu(mSlot);
         if (mStkMenu == null) {
             finish();
             return;
         }
+        mMenuIndex = appService.getMenuIndex(mSlot, mStkMenu);
         displayMenu();
+        StkAppService.notifyDisplayed(this);
         startTimeOut();
         // whenever this activity is resumed after a sub activity was invoked
         // (Browser, In call screen) switch back to main state and enable
@@ -160,6 +175,11 @@ public class StkMenuActivity extends ListActivity {
             mState = STATE_MAIN;
             mAcceptUsersInput = true;
         }
+        // The main menu's token changes with every accepted selection and
+        // every new SET UP MENU, a SELECT ITEM keeps the one it came with.
+        if (mState == STATE_MAIN) {
+            mSeq = appService.getMainMenuSeq(mSlot);
+        }
         // make sure the progress bar is not shown.
         mProgressView.setIndeterminate(false);
         mProgressView.setVisibility(View.GONE);
@@ -169,7 +189,9 @@ public class StkMenuActivity extends ListActivity {
     public void onPause() {
         super.onPause();
 
-        appService.indicateMenuVisibility(false);
+        if (appService != null) {
+            appService.indicateMenuVisibility(mSlot, false);
+        }
         cancelTimeOut();
     }
 
@@ -214,13 +236,11 @@ public class StkMenuActivity extends ListActivity {
         }
         switch (item.getItemId()) {
         case StkApp.MENU_ID_END_SESSION:
-            cancelTimeOut();
             mAcceptUsersInput = false;
             // send session end response.
             sendResponse(StkAppService.RES_ID_END_SESSION);
             return true;
         case StkApp.MENU_ID_HELP:
-            cancelTimeOut();
             mAcceptUsersInput = false;
             int position = getSelectedItemPosition();
             Item stkItem = getSelectedItem(position);
@@ -237,35 +257,60 @@ public class StkMenuActivity extends ListActivity {
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         outState.putInt("STATE", mState);
-        outState.putParcelable("MENU", mStkMenu);
+        outState.putLong(StkAppService.SEQ, mSeq);
+        outState.putInt(StkAppService.SLOT, mSlot);
+        if (appService != null && mStkMenu != null) {
+            // Reuse the token while it still resolves to the menu, a new one
+            // on every save would evict payloads other screens still need.
+            if (mPayload == 0 || StkAppService.getPayload(mPayload) != mStkMenu) {
+                mPayload = appService.putPayload(mStkMenu);
+            }
+            outState.putLong(StkAppService.PAYLOAD, mPayload);
+        }
     }
 
     @Override
     protected void onRestoreInstanceState(Bundle savedInstanceState) {
         mState = savedInstanceState.getInt("STATE");
-        mStkMenu = savedInstanceState.getParcelable("MENU");
+        mSeq = savedInstanceState.getLong(StkAppService.SEQ,
+                StkAppService.SEQ_NONE);
+        mSlot = savedInstanceState.getInt(StkAppService.SLOT,
+                StkSlotEngine.DEFAULT_SLOT);
+        mPayload = savedInstanceState.getLong(StkAppService.PAYLOAD);
+        mStkMenu = (Menu) StkAppService.getPayload(mPayload);
+        // appService is only resolved in onResume().
+        if (appService == null) {
+            appService = StkAppService.getInstance();
+        }
+        if (mStkMenu == null && appService != null) {
+            // Fall back to the service's current menu.
+            mStkMenu = appService.getMenu(mSlot);
+        }
+        mMenuIndex = (appService != null && mStkMenu != null)
+                ? appService.getMenuIndex(mSlot, mStkMenu) : new StkMenuIndex(mStkMenu);
     }
 
     private void cancelTimeOut() {
-        mTimeoutHandler.removeMessages(MSG_ID_TIMEOUT);
+        StkAppService.clearTimeoutListener(mSeq, mTimeoutListener);
     }
 
     private void startTimeOut() {
+        // The timeout itself is owned by the service, only SELECT ITEM
+        // menus have one.
         if (mState == STATE_SECONDARY) {
-            // Reset timeout.
-            cancelTimeOut();
-            mTimeoutHandler.sendMessageDelayed(mTimeoutHandler
-                    .obtainMessage(MSG_ID_TIMEOUT), StkApp.UI_TIMEOUT);
+            StkAppService.setTimeoutListener(mSeq, mTimeoutListener);
         }
     }
 
-    // Bind list adapter to the items list.
+    // Bind list adapter to the items list. Nothing is rebound when the same
+    // menu is displayed again, e.g. when returning from a sub dialog.
     private void displayMenu() {
 
-        if (mStkMenu != null) {
+        if (mStkMenu != null && mStkMenu != mDisplayedMenu) {
             // Display title & title icon
             if (mStkMenu.titleIcon != null) {
-                mTitleIconView.setImageBitmap(mStkMenu.titleIcon);
+                mTitleIconView.setImageBitmap(StkIconCache.getInstance(this)
+                        .get(mStkMenu.titleIcon));
                 mTitleIconView.setVisibility(View.VISIBLE);
             } else {
                 mTitleIconView.setVisibility(View.GONE);
@@ -287,6 +332,7 @@ public class StkMenuActivity extends ListActivity {
             setListAdapter(adapter);
             // Set default item
             setSelection(mStkMenu.defaultItem);
+            mDisplayedMenu = mStkMenu;
         }
     }
 
@@ -294,6 +340,10 @@ public class StkMenuActivity extends ListActivity {
 
         if (intent != null) {
             mState = intent.getIntExtra("STATE", STATE_MAIN);
+            mSeq = intent.getLongExtra(StkAppService.SEQ,
+                    StkAppService.SEQ_NONE);
+            mSlot = intent.getIntExtra(StkAppService.SLOT,
+                    StkSlotEngine.DEFAULT_SLOT);
         } else {
             finish();
         }
@@ -301,18 +351,11 @@ public class StkMenuActivity extends ListActivity {
 
     private Item getSelectedItem(int position) {
         Item item = null;
-        if (mStkMenu != null) {
-            try {
-                item = mStkMenu.items.get(position);
-            } catch (IndexOutOfBoundsException e) {
-                if (StkApp.DBG) {
-                    StkLog.d(this, "Invalid menu");
-                }
-            } catch (NullPointerException e) {
-                if (StkApp.DBG) {
-                    StkLog.d(this, "Invalid menu");
-                }
-            }
+        if (mMenuIndex != null) {
+            item = mMenuIndex.getItemAt(position);
+        }
+        if (item == null && StkApp.DBG) {
+            StkLog.d(this, "Invalid menu");
         }
         return item;
     }
@@ -322,12 +365,10 @@ public class StkMenuActivity extends ListActivity {
     }
 
     private void sendResponse(int resId, int itemId, boolean help) {
-        Bundle args = new Bundle();
-        args.putInt(StkAppService.OPCODE, StkAppService.OP_RESPONSE);
-        args.putInt(StkAppService.RES_ID, resId);
-        args.putInt(StkAppService.MENU_SELECTION, itemId);
-        args.putBoolean(StkAppService.HELP, help);
-        mContext.startService(new Intent(mContext, StkAppService.class)
-                .putExtras(args));
+        StkUserResponse response = new StkUserResponse(resId);
+        response.menuSelection = itemId;
+        response.help = help;
+        response.seq = mSeq;
+        StkAppService.sendResponse(mContext, response);
     }
 }
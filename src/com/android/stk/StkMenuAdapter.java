@@ -19,6 +19,7 @@ package com.android.stk;
 import com.android.internal.telephony.gsm.stk.Item;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -33,34 +34,63 @@ import java.util.List;
  */
 public class StkMenuAdapter extends ArrayAdapter<Item> {
     private final LayoutInflater mInflater;
+    private final StkIconCache mIconCache;
     private boolean mIcosSelfExplanatory = false;
 
+    // Child views of a row and what is currently bound to them, used to
+    // skip redundant updates when a row is rebound to the same item.
+    private static final class ViewHolder {
+        TextView text;
+        ImageView icon;
+        String boundText;
+        Bitmap boundIcon;
+        boolean bound = false;
+    }
+
     public StkMenuAdapter(Context context, List<Item> items,
             boolean icosSelfExplanatory) {
         super(context, 0, items);
         mInflater = LayoutInflater.from(context);
+        mIconCache = StkIconCache.getInstance(context);
         mIcosSelfExplanatory = icosSelfExplanatory;
     }
 
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
         final Item item = getItem(position);
+        ViewHolder holder;
 
         if (convertView == null) {
             convertView = mInflater.inflate(R.layout.stk_menu_item, parent,
                     false);
+            holder = new ViewHolder();
+            holder.text = (TextView) convertView.findViewById(R.id.text);
+            holder.icon = (ImageView) convertView.findViewById(R.id.icon);
+            convertView.setTag(holder);
+        } else {
+            holder = (ViewHolder) convertView.getTag();
         }
 
+        String text = null;
         if (!mIcosSelfExplanatory || (mIcosSelfExplanatory && item.icon == null)) {
-            ((TextView) convertView.findViewById(R.id.text)).setText(item.text);
+            text = item.text;
         }
-        ImageView imageView = ((ImageView) convertView.findViewById(R.id.icon));
-        if (item.icon == null) {
-            imageView.setVisibility(View.GONE);
-        } else {
-            imageView.setImageBitmap(item.icon);
-            imageView.setVisibility(View.VISIBLE);
+        if (!holder.bound || text != holder.boundText) {
+            holder.text.setText(text);
+            holder.boundText = text;
+        }
+        Bitmap icon = mIconCache.get(item.icon);
+        if (!holder.bound || icon != holder.boundIcon) {
+            if (icon == null) {
+                holder.icon.setImageBitmap(null);
+                holder.icon.setVisibility(View.GONE);
+            } else {
+                holder.icon.setImageBitmap(icon);
+                holder.icon.setVisibility(View.VISIBLE);
+            }
+            holder.boundIcon = icon;
         }
+        holder.bound = true;
 
         return convertView;
     }
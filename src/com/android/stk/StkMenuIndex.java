@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.stk;
+
+import com.android.internal.telephony.gsm.stk.Item;
+import com.android.internal.telephony.gsm.stk.Menu;
+
+import java.util.List;
+
+/**
+ * Immutable lookup table over the items of a STK menu. Item identifiers are
+ * a single byte in the SIM's item TLV, so items are indexed by a direct
+ * table and every lookup is O(1). Lookups never throw, invalid positions or
+ * unknown ids return null or -1.
+ */
+final class StkMenuIndex {
+    private static final int MAX_ITEM_ID = 0xff;
+
+    private final Menu mMenu;
+    private final Item[] mItems;
+    // position + 1 of the item with a given id, 0 when there is none.
+    private final int[] mPositions = new int[MAX_ITEM_ID + 1];
+
+    StkMenuIndex(Menu menu) {
+        mMenu = menu;
+        List<Item> items = (menu != null) ? menu.items : null;
+        if (items == null) {
+            mItems = new Item[0];
+            return;
+        }
+        mItems = items.toArray(new Item[items.size()]);
+        for (int i = 0; i < mItems.length; i++) {
+            Item item = mItems[i];
+            if (item != null && item.id >= 0 && item.id <= MAX_ITEM_ID
+                    && mPositions[item.id] == 0) {
+                mPositions[item.id] = i + 1;
+            }
+        }
+    }
+
+    /**
+     * Returns true if this index was built for the given menu instance.
+     */
+    boolean isFor(Menu menu) {
+        return mMenu == menu;
+    }
+
+    Menu getMenu() {
+        return mMenu;
+    }
+
+    int size() {
+        return mItems.length;
+    }
+
+    Item getItemAt(int position) {
+        if (position < 0 || position >= mItems.length) {
+            return null;
+        }
+        return mItems[position];
+    }
+
+    /**
+     * Returns the list position of the item with the given id, -1 if none.
+     */
+    int getPosition(int itemId) {
+        if (itemId < 0 || itemId > MAX_ITEM_ID) {
+            return -1;
+        }
+        return mPositions[itemId] - 1;
+    }
+
+    Item getItemById(int itemId) {
+        return getItemAt(getPosition(itemId));
+    }
+
+    String getItemText(int itemId) {
+        Item item = getItemById(itemId);
+        return (item != null) ? item.text : null;
+    }
+}
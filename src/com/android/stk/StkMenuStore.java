@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.stk;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.android.internal.telephony.gsm.stk.Item;
+import com.android.internal.telephony.gsm.stk.Menu;
+import com.android.internal.telephony.gsm.stk.StkLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Persists the last SET UP MENU main menu, so the toolkit menu can be shown
+ * right after boot or a phone process restart, before the SIM sends SET UP
+ * MENU again.
+ *
+ * A single snapshot is kept, tagged with the identity (ICCID) of the SIM it
+ * came from, and is only handed out for that SIM. Methods do file I/O and
+ * must not be called on the UI or service thread.
+ */
+abstract class StkMenuStore {
+    private StkMenuStore() {}
+
+    private static final String FILE_NAME = "stk_main_menu";
+    private static final int VERSION = 1;
+
+    /**
+     * Stores the menu as the snapshot for the given SIM. Nothing is stored
+     * when the SIM identity is unknown.
+     */
+    static void save(Context context, String simId, Menu menu) {
+        if (simId == null || menu == null) {
+            return;
+        }
+        File file = context.getFileStreamPath(FILE_NAME);
+        File tmp = context.getFileStreamPath(FILE_NAME + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp)));
+            out.writeInt(VERSION);
+            out.writeUTF(simId);
+            writeString(out, menu.title);
+            writeIcon(out, menu.titleIcon);
+            out.writeInt(menu.defaultItem);
+            out.writeBoolean(menu.softKeyPreferred);
+            out.writeBoolean(menu.helpAvailable);
+            out.writeBoolean(menu.titleIconSelfExplanatory);
+            out.writeBoolean(menu.itemsIconSelfExplanatory);
+            int count = 0;
+            if (menu.items != null) {
+                for (Item item : menu.items) {
+                    if (item != null) {
+                        count++;
+                    }
+                }
+            }
+            out.writeInt(count);
+            for (int i = 0; count > 0 && i < menu.items.size(); i++) {
+                Item item = menu.items.get(i);
+                if (item == null) {
+                    continue;
+                }
+                out.writeInt(item.id);
+                writeString(out, item.text);
+                writeIcon(out, item.icon);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                StkLog.d("StkMenuStore", "Unable to commit menu snapshot");
+            }
+        } catch (IOException e) {
+            StkLog.d("StkMenuStore", "Unable to save menu snapshot: " + e);
+        } finally {
+            closeQuietly(out);
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Returns the snapshot stored for the given SIM, or null if there is no
+     * valid snapshot for it.
+     */
+    static Menu load(Context context, String simId) {
+        if (simId == null) {
+            return null;
+        }
+        File file = context.getFileStreamPath(FILE_NAME);
+        if (!file.exists()) {
+            return null;
+        }
+        // No length read from the file can be larger than the file itself.
+        long size = file.length();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            if (in.readInt() != VERSION || !simId.equals(in.readUTF())) {
+                return null;
+            }
+            Menu menu = new Menu();
+            menu.title = readString(in);
+            menu.titleIcon = readIcon(in, size);
+            menu.defaultItem = in.readInt();
+            menu.softKeyPreferred = in.readBoolean();
+            menu.helpAvailable = in.readBoolean();
+            menu.titleIconSelfExplanatory = in.readBoolean();
+            menu.itemsIconSelfExplanatory = in.readBoolean();
+            int count = in.readInt();
+            if (count < 0 || count > size) {
+                throw new IOException("Bad item count " + count);
+            }
+            for (int i = 0; i < count; i++) {
+                Item item = new Item(in.readInt(), readString(in));
+                item.icon = readIcon(in, size);
+                menu.items.add(item);
+            }
+            return menu;
+        } catch (IOException e) {
+            StkLog.d("StkMenuStore", "Unable to load menu snapshot: " + e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Removes the snapshot, e.g. when the SIM removed its menu.
+     */
+    static void delete(Context context) {
+        context.deleteFile(FILE_NAME);
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeIcon(DataOutputStream out, Bitmap icon)
+            throws IOException {
+        if (icon == null) {
+            out.writeInt(-1);
+            return;
+        }
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        icon.compress(Bitmap.CompressFormat.PNG, 100, png);
+        out.writeInt(png.size());
+        png.writeTo(out);
+    }
+
+    private static Bitmap readIcon(DataInputStream in, long max)
+            throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > max) {
+            throw new IOException("Bad icon length " + length);
+        }
+        byte[] png = new byte[length];
+        in.readFully(png);
+        return BitmapFactory.decodeByteArray(png, 0, length);
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
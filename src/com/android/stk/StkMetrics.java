@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.stk;
+
+import android.content.Context;
+
+import com.android.internal.telephony.gsm.stk.StkLog;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Registry of the named counters and gauges of the STK app, printed by
+ * StkAppService.dump() and appended to a small stats file.
+ *
+ * Counters are striped: every thread adds to the cell of its stripe, each
+ * on its own cache line, so the main, service and I/O threads never contend
+ * on an update; the cells are only summed when read. Gauges are sampled
+ * when read. Metrics are registered once, when the service starts; counters
+ * and gauges that are 0 are left out of the output.
+ */
+final class StkMetrics {
+    // Number of cells per counter, a power of two.
+    private static final int STRIPES = 4;
+    // Distance in longs between two cells, one cache line.
+    private static final int PAD = 8;
+
+    private static final String STATS_FILE = "stk_stats";
+    // Size the stats file is rotated at, the previous one is kept as
+    // STATS_FILE.1.
+    private static final int MAX_STATS_BYTES = 16 * 1024;
+
+    /**
+     * Striped counter, updates are lock free and can come from any thread.
+     */
+    static final class Counter {
+        private final AtomicLongArray mCells = new AtomicLongArray(STRIPES * PAD);
+
+        void inc() {
+            add(1);
+        }
+
+        void add(long delta) {
+            int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+            mCells.addAndGet(stripe * PAD, delta);
+        }
+
+        long get() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += mCells.get(i * PAD);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Value sampled when the metrics are read, on the reading thread.
+     */
+    interface Gauge {
+        long get();
+    }
+
+    private final LinkedHashMap<String, Object> mMetrics =
+            new LinkedHashMap<String, Object>();
+    private long mSnapshots = 0;
+
+    /**
+     * Returns the counter of the given name, registering it if needed.
+     */
+    synchronized Counter counter(String name) {
+        Object metric = mMetrics.get(name);
+        if (metric instanceof Counter) {
+            return (Counter) metric;
+        }
+        Counter counter = new Counter();
+        mMetrics.put(name, counter);
+        return counter;
+    }
+
+    /**
+     * Registers one counter per enum value, named prefix.value, and returns
+     * them indexed by ordinal.
+     */
+    Counter[] counters(String prefix, Enum<?>[] values) {
+        Counter[] counters = new Counter[values.length];
+        for (int i = 0; i < values.length; i++) {
+            counters[i] = counter(prefix + "." + values[i].name().toLowerCase());
+        }
+        return counters;
+    }
+
+    synchronized void gauge(String name, Gauge gauge) {
+        mMetrics.put(name, gauge);
+    }
+
+    /**
+     * Prints every metric that isn't 0, one per line.
+     */
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Metrics (" + mSnapshots + " snapshots written):");
+        for (Map.Entry<String, Object> e : mMetrics.entrySet()) {
+            long value = valueOf(e.getValue());
+            if (value != 0) {
+                pw.println("  " + e.getKey() + " " + value);
+            }
+        }
+    }
+
+    /**
+     * Appends a snapshot of the metrics to the stats file, as a single
+     * "time name=value ..." line. Does file I/O, not for the main or the
+     * service thread.
+     */
+    void writeStats(Context context) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(System.currentTimeMillis());
+        synchronized (this) {
+            for (Map.Entry<String, Object> e : mMetrics.entrySet()) {
+                long value = valueOf(e.getValue());
+                if (value != 0) {
+                    sb.append(' ').append(e.getKey()).append('=').append(value);
+                }
+            }
+            mSnapshots++;
+        }
+        sb.append('\n');
+
+        File file = context.getFileStreamPath(STATS_FILE);
+        if (file.length() > MAX_STATS_BYTES) {
+            file.renameTo(context.getFileStreamPath(STATS_FILE + ".1"));
+        }
+        FileOutputStream out = null;
+        try {
+            out = context.openFileOutput(STATS_FILE, Context.MODE_APPEND);
+            out.write(sb.toString().getBytes());
+        } catch (IOException e) {
+            StkLog.d("StkMetrics", "Unable to write stats: " + e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static long valueOf(Object metric) {
+        return (metric instanceof Counter) ? ((Counter) metric).get()
+                : ((Gauge) metric).get();
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.stk;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-process store of the command payloads shown by the STK UI (text
+ * messages, inputs, menus, tone commands).
+ *
+ * The service puts a payload and passes the returned token to the UI in the
+ * Intent; activities resolve the token in-process, so the payload with its
+ * icons is never copied through the activity manager. The most recently
+ * used CAPACITY payloads are kept, a token that was evicted resolves to
+ * null. Thread safe.
+ *
+ * The parcel size of one in SAMPLE_INTERVAL payloads is measured and added
+ * to the metrics, to report the copying saved without marshalling every
+ * payload again.
+ */
+final class StkPayloadStore {
+    private static final int CAPACITY = 16;
+    private static final int SAMPLE_INTERVAL = 8;
+
+    private final LinkedHashMap<Long, Object> mPayloads =
+            new LinkedHashMap<Long, Object>(CAPACITY, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Object> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+    private long mNextToken = 1;
+
+    private final StkMetrics.Counter mPuts;
+    private final StkMetrics.Counter mMisses;
+    private final StkMetrics.Counter mSamples;
+    private final StkMetrics.Counter mSampledBytes;
+
+    StkPayloadStore(StkMetrics metrics) {
+        mPuts = metrics.counter("payload.puts");
+        mMisses = metrics.counter("payload.misses");
+        mSamples = metrics.counter("payload.parcel_samples");
+        mSampledBytes = metrics.counter("payload.parcel_sampled_bytes");
+    }
+
+    /**
+     * Stores a payload.
+     *
+     * @return the token resolving to it, never 0.
+     */
+    synchronized long put(Object payload) {
+        long token = mNextToken++;
+        mPayloads.put(token, payload);
+        mPuts.inc();
+        if (token % SAMPLE_INTERVAL == 1 && payload instanceof Parcelable) {
+            mSamples.inc();
+            mSampledBytes.add(parcelSize((Parcelable) payload));
+        }
+        return token;
+    }
+
+    /**
+     * Returns the payload of the token, null if it's unknown or evicted.
+     */
+    synchronized Object get(long token) {
+        Object payload = mPayloads.get(token);
+        if (payload == null) {
+            mMisses.inc();
+        }
+        return payload;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long samples = mSamples.get();
+        return "payloads=" + mPayloads.size() + " puts=" + mPuts.get()
+                + " misses=" + mMisses.get() + " avgParcelBytes="
+                + (samples == 0 ? 0 : mSampledBytes.get() / samples);
+    }
+
+    private static int parcelSize(Parcelable payload) {
+        Parcel p = Parcel.obtain();
+        try {
+            p.writeParcelable(payload, 0);
+            return p.dataSize();
+        } finally {
+            p.recycle();
+        }
+    }
+}
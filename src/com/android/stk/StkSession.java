@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.stk;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+
+/**
+ * State machine of the toolkit session run by StkAppService.
+ *
+ * The session is in exactly one State. Every Event maps, through a table
+ * indexed by state and event, to the next state and the Action the service
+ * has to perform. Informative commands are handled in every state without a
+ * state change. Events that need the queue's content to be decided are split
+ * by it (e.g. DONE_EMPTY, DONE_CMD, DONE_SESSION_END), so a lookup never
+ * needs more than the two ordinals. The last transitions are kept in a
+ * trace for diagnostics. Used from the service thread only.
+ */
+final class StkSession {
+    enum State {
+        // No interactive command or session end in progress.
+        IDLE,
+        // The next queue entry was posted for dispatch.
+        DISPATCHING,
+        // An interactive command is shown, its terminal response is pending.
+        WAIT_RESPONSE,
+        // A command that was already answered (DISPLAY TEXT with immediate
+        // response) is shown until the user or its timeout clears it.
+        WAIT_DISMISS,
+        // The browser was just launched, interactive commands are held.
+        BROWSER_SETTLING,
+    }
+
+    enum Event {
+        INFORMATIVE,
+        INTERACTIVE,
+        // The command being handled was already answered.
+        IMMEDIATE_RESPONSE,
+        SESSION_END,
+        RESPONSE,
+        TIMEOUT,
+        // A command or session end was completed; split by the queue head.
+        DONE_EMPTY,
+        DONE_CMD,
+        DONE_SESSION_END,
+        // The posted dispatch runs; split by the queue head.
+        DISPATCH_EMPTY,
+        DISPATCH_CMD,
+        DISPATCH_SESSION_END,
+        BROWSER_LAUNCHED,
+        BROWSER_SETTLED,
+    }
+
+    enum Action {
+        NONE,
+        // Handle the command now.
+        HANDLE,
+        QUEUE,
+        QUEUE_SESSION_END,
+        // Apply the user response and send the terminal response.
+        RESPOND,
+        // Close the command without sending a terminal response.
+        DISMISS,
+        HANDLE_SESSION_END,
+        // Post the dispatch of the queue head.
+        POST_DISPATCH,
+        // Take the queue head and handle it.
+        HANDLE_QUEUED,
+    }
+
+    private static final class Transition {
+        final State next;
+        final Action action;
+
+        Transition(State next, Action action) {
+            this.next = next;
+            this.action = action;
+        }
+    }
+
+    private static final Transition[][] TABLE =
+            new Transition[State.values().length][Event.values().length];
+
+    private static void on(State state, Event event, State next, Action action) {
+        TABLE[state.ordinal()][event.ordinal()] = new Transition(next, action);
+    }
+
+    static {
+        // Defaults: informative commands are handled, anything unexpected
+        // is ignored.
+        for (State s : State.values()) {
+            for (Event e : Event.values()) {
+                on(s, e, s, Action.NONE);
+            }
+            on(s, Event.INFORMATIVE, s, Action.HANDLE);
+        }
+
+        // States with nothing in progress.
+        for (State s : new State[] { State.IDLE, State.DISPATCHING }) {
+            on(s, Event.RESPONSE, s, Action.RESPOND);
+            on(s, Event.TIMEOUT, s, Action.RESPOND);
+            on(s, Event.DISPATCH_EMPTY, State.IDLE, Action.NONE);
+            on(s, Event.DISPATCH_CMD, State.WAIT_RESPONSE, Action.HANDLE_QUEUED);
+            on(s, Event.DISPATCH_SESSION_END, State.IDLE, Action.HANDLE_QUEUED);
+            on(s, Event.BROWSER_LAUNCHED, State.BROWSER_SETTLING, Action.NONE);
+        }
+        on(State.IDLE, Event.INTERACTIVE, State.WAIT_RESPONSE, Action.HANDLE);
+        on(State.IDLE, Event.SESSION_END, State.IDLE, Action.HANDLE_SESSION_END);
+        on(State.IDLE, Event.DONE_CMD, State.DISPATCHING, Action.POST_DISPATCH);
+        on(State.IDLE, Event.DONE_SESSION_END, State.DISPATCHING,
+                Action.POST_DISPATCH);
+        // A dispatch is already posted, new work lines up behind the queue.
+        on(State.DISPATCHING, Event.INTERACTIVE, State.DISPATCHING, Action.QUEUE);
+        on(State.DISPATCHING, Event.SESSION_END, State.DISPATCHING,
+                Action.QUEUE_SESSION_END);
+
+        // States waiting for the UI.
+        for (State s : new State[] { State.WAIT_RESPONSE, State.WAIT_DISMISS }) {
+            on(s, Event.INTERACTIVE, s, Action.QUEUE);
+            on(s, Event.SESSION_END, s, Action.QUEUE_SESSION_END);
+            Action close = (s == State.WAIT_RESPONSE) ? Action.RESPOND : Action.DISMISS;
+            on(s, Event.RESPONSE, State.IDLE, close);
+            on(s, Event.TIMEOUT, State.IDLE, close);
+        }
+        on(State.WAIT_RESPONSE, Event.IMMEDIATE_RESPONSE, State.WAIT_DISMISS,
+                Action.NONE);
+
+        // Only interactive commands wait for the browser, session ends and
+        // responses (e.g. from the main menu) go through.
+        State settling = State.BROWSER_SETTLING;
+        on(settling, Event.INTERACTIVE, settling, Action.QUEUE);
+        on(settling, Event.SESSION_END, settling, Action.HANDLE_SESSION_END);
+        on(settling, Event.RESPONSE, settling, Action.RESPOND);
+        on(settling, Event.TIMEOUT, settling, Action.RESPOND);
+        on(settling, Event.DONE_SESSION_END, settling, Action.POST_DISPATCH);
+        on(settling, Event.DISPATCH_SESSION_END, settling, Action.HANDLE_QUEUED);
+        on(settling, Event.BROWSER_SETTLED, State.IDLE, Action.NONE);
+    }
+
+    private static final int TRACE_SIZE = 32;
+
+    private State mState = State.IDLE;
+
+    // Ring of the last transitions.
+    private final long[] mTraceTime = new long[TRACE_SIZE];
+    private final byte[] mTraceFrom = new byte[TRACE_SIZE];
+    private final byte[] mTraceEvent = new byte[TRACE_SIZE];
+    private final byte[] mTraceTo = new byte[TRACE_SIZE];
+    private int mTraceNext = 0;
+    private long mTransitions = 0;
+
+    State getState() {
+        return mState;
+    }
+
+    /**
+     * Returns true while a shown command keeps the session busy.
+     */
+    boolean isWaitingForUi() {
+        return mState == State.WAIT_RESPONSE || mState == State.WAIT_DISMISS;
+    }
+
+    /**
+     * Moves the session on the given event.
+     *
+     * @return the action the service has to perform.
+     */
+    Action fire(Event event) {
+        State from = mState;
+        Transition t = TABLE[from.ordinal()][event.ordinal()];
+        mState = t.next;
+
+        int i = mTraceNext;
+        mTraceTime[i] = SystemClock.elapsedRealtime();
+        mTraceFrom[i] = (byte) from.ordinal();
+        mTraceEvent[i] = (byte) event.ordinal();
+        mTraceTo[i] = (byte) t.next.ordinal();
+        mTraceNext = (i + 1) % TRACE_SIZE;
+        mTransitions++;
+        return t.action;
+    }
+
+    /**
+     * Prints the state and the trace, oldest transition first.
+     */
+    void dump(PrintWriter pw) {
+        State[] states = State.values();
+        Event[] events = Event.values();
+        pw.println("Session state: " + mState + ", " + mTransitions + " transitions");
+        int count = (int) Math.min(mTransitions, TRACE_SIZE);
+        for (int n = 0; n < count; n++) {
+            int i = (mTraceNext - count + n + TRACE_SIZE) % TRACE_SIZE;
+            pw.println("  " + mTraceTime[i] + " " + states[mTraceFrom[i]]
+                    + " --" + events[mTraceEvent[i]] + "--> "
+                    + states[mTraceTo[i]]);
+        }
+    }
+}
@@ -0,0 +1,987 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.stk;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.android.internal.telephony.gsm.stk.AppInterface;
+import com.android.internal.telephony.gsm.stk.Duration;
+import com.android.internal.telephony.gsm.stk.Input;
+import com.android.internal.telephony.gsm.stk.Menu;
+import com.android.internal.telephony.gsm.stk.ResultCode;
+import com.android.internal.telephony.gsm.stk.StkCmdMessage;
+import com.android.internal.telephony.gsm.stk.StkCmdMessage.BrowserSettings;
+import com.android.internal.telephony.gsm.stk.StkLog;
+import com.android.internal.telephony.gsm.stk.StkResponseMessage;
+import com.android.internal.telephony.gsm.stk.TextMessage;
+
+import java.io.PrintWriter;
+
+/**
+ * Toolkit command engine of one SIM slot.
+ *
+ * An engine answers the proactive commands of its slot's AppInterface. It
+ * owns the slot's command queue, session state machine, main menu, UI
+ * timeouts and deadline watchdog, and the sequence tokens of the commands
+ * it shows; a token names its slot, so responses find their way back. The
+ * UI elements, the launcher entry and the main menu snapshot are shared by
+ * all slots and reached through the Host, i.e. StkAppService. Engines share
+ * the service thread, but a session waiting for the user on one slot never
+ * holds up the commands of another. Used from the service thread only,
+ * except for the methods marked as UI api.
+ */
+final class StkSlotEngine {
+    // Slot of commands and responses that don't name one.
+    static final int DEFAULT_SLOT = 0;
+    // Sequence tokens carry their slot in the low bits.
+    private static final int SLOT_BITS = 3;
+    static final int MAX_SLOTS = 1 << SLOT_BITS;
+
+    // Sequence token of responses that don't name their command, e.g. from
+    // the restored main menu. They are applied to the current command of
+    // the default slot.
+    static final long SEQ_NONE = 0;
+
+    // Ids of the command queue entries.
+    private static final int ENTRY_CMD = 1;
+    private static final int ENTRY_SESSION_END = 2;
+
+    /**
+     * Implemented by the UI element showing the current command of a slot,
+     * to learn that the command timed out. Called on the service thread.
+     */
+    interface TimeoutListener {
+        void onCmdTimeout();
+    }
+
+    /**
+     * What the engines share: the UI elements, the launcher entry and the
+     * main menu snapshot. Called on the service thread.
+     */
+    interface Host {
+        // Shows the slot's main menu when menu is null, a SELECT ITEM menu
+        // otherwise.
+        void launchMenu(StkSlotEngine engine, Menu menu);
+        void launchInput(StkSlotEngine engine, Input input);
+        void launchTextDialog(StkSlotEngine engine, TextMessage msg);
+        void launchConfirmationDialog(StkSlotEngine engine, TextMessage msg);
+        void launchToneDialog(StkSlotEngine engine, StkCmdMessage cmd);
+        void launchBrowser(BrowserSettings settings);
+        void showCallMessage(TextMessage msg);
+        void showIdleText(TextMessage msg);
+        void showEventMessage(TextMessage msg);
+        // The slot's main menu appeared or went away, see hasMainMenu().
+        void onMainMenuChanged(StkSlotEngine engine);
+        // Saves the snapshot of the slot's main menu, deletes it when menu
+        // is null.
+        void saveMainMenu(StkSlotEngine engine, Menu menu);
+    }
+
+    private final int mSlot;
+    private final AppInterface mStkService;
+    private final Handler mHandler;
+    private final Host mHost;
+    private final StkTrace mTrace;
+    private final StkLatencyTracker mLatencyTracker;
+    private final long mCreateTime;
+    private final StkCmdQueue mCmdsQ = new StkCmdQueue(StkApp.CMD_QUEUE_CAPACITY);
+    private final StkSession mSession = new StkSession();
+    private final StkTimeoutScheduler mTimeouts;
+    private final StkWatchdog mWatchdog;
+    // Counters shared by all slots, indexed by result code ordinal.
+    private final StkMetrics.Counter[] mResultCodes;
+    private final StkMetrics.Counter mTimeoutsFired;
+
+    private StkCmdMessage mMainCmd = null;
+    // true if the last SET UP MENU removed the main menu.
+    private boolean mMainMenuRemoved = false;
+    private StkCmdMessage mCurrentCmd = null;
+    private Menu mCurrentMenu = null;
+    // Item lookup tables of the SET UP MENU and the latest SELECT ITEM menus.
+    private volatile StkMenuIndex mMainMenuIndex = null;
+    private volatile StkMenuIndex mSelectMenuIndex = null;
+    private String lastSelectedItem = null;
+    private boolean mMenuIsVisibile = false;
+    // Browser confirmed by LAUNCH BROWSER, launched at session end.
+    private BrowserSettings mBrowserSettings = null;
+    // Main menu restored from the last session's snapshot, until the SIM
+    // sends SET UP MENU again.
+    private Menu mRestoredMenu = null;
+    // Main menu selection made on the restored menu, replayed once the SIM
+    // sends SET UP MENU.
+    private StkUserResponse mPendingSelection = null;
+    private String mPendingSelectionText = null;
+    private long mTimeToRestoredMenu = -1;
+    private long mTimeToSimMenu = -1;
+    // Command whose UI timeout is pending, and the last one that expired.
+    private volatile StkCmdMessage mTimeoutCmd = null;
+    private volatile StkCmdMessage mTimedOutCmd = null;
+    private int mTimeoutExtension = 0;
+    private volatile TimeoutListener mTimeoutListener = null;
+    // Sequence tokens correlating user responses with the command they
+    // answer. mCurrentSeq is the token of mSeqCmd, the last command the UI
+    // was asked to answer, mMainSeq the token of the main menu (mMainCmd)
+    // and mAnsweredSeq the one last answered. Service thread only, except
+    // for reads of mMainSeq by StkMenuActivity.
+    private long mNextSeq = 1;
+    private long mCurrentSeq = SEQ_NONE;
+    private StkCmdMessage mSeqCmd = null;
+    private volatile long mMainSeq = SEQ_NONE;
+    private long mAnsweredSeq = SEQ_NONE;
+    private long mTimeoutSeq = SEQ_NONE;
+    private int mStaleResponses = 0;
+    private int mDuplicateResponses = 0;
+
+    // Dispatches the next queue entry, posted by the session.
+    private final Runnable mDispatch = new Runnable() {
+        public void run() {
+            fireSessionEvent(queueEvent(StkSession.Event.DISPATCH_EMPTY,
+                    StkSession.Event.DISPATCH_CMD,
+                    StkSession.Event.DISPATCH_SESSION_END), null, null);
+        }
+    };
+
+    private final Runnable mBrowserSettled = new Runnable() {
+        public void run() {
+            fireSessionEvent(StkSession.Event.BROWSER_SETTLED, null, null);
+            onSessionDone();
+        }
+    };
+
+    /**
+     * @param slot Slot served, below MAX_SLOTS.
+     * @param stkService Toolkit of the slot, terminal responses go there.
+     * @param handler Handler of the service thread.
+     * @param createTime elapsedRealtime() the service was created at.
+     */
+    StkSlotEngine(int slot, AppInterface stkService, Handler handler, Host host,
+            StkTrace trace, StkLatencyTracker latencyTracker, StkMetrics metrics,
+            long createTime) {
+        mSlot = slot;
+        mStkService = stkService;
+        mHandler = handler;
+        mHost = host;
+        mTrace = trace;
+        mLatencyTracker = latencyTracker;
+        mCreateTime = createTime;
+        mResultCodes = metrics.counters("result", ResultCode.values());
+        mTimeoutsFired = metrics.counter("timeouts");
+        mTimeouts = new StkTimeoutScheduler(handler, mTimeoutCallback);
+        mWatchdog = new StkWatchdog(handler, mWatchdogCallback);
+    }
+
+    /**
+     * Returns the slot a sequence token belongs to, SEQ_NONE belongs to the
+     * default slot.
+     */
+    static int slotOf(long seq) {
+        return (int) (seq & (MAX_SLOTS - 1));
+    }
+
+    int getSlot() {
+        return mSlot;
+    }
+
+    /**
+     * Handles a proactive command of the slot.
+     */
+    void onCmd(StkCmdMessage cmdMsg) {
+        // There are two types of commands:
+        // 1. Interactive - user's response is required.
+        // 2. Informative - display a message, no interaction with the user.
+        //
+        // Informative commands can be handled immediately without any delay.
+        // Interactive commands can't override each other. So if a command
+        // is already in progress, we need to queue the next command until
+        // the user has responded or a timeout expired. StkSession
+        // decides which applies.
+        boolean interactive = StkCommands.isInteractive(cmdMsg.getCmdType());
+        if (interactive) {
+            mWatchdog.watch(cmdMsg);
+        }
+        fireSessionEvent(interactive ? StkSession.Event.INTERACTIVE
+                : StkSession.Event.INFORMATIVE, cmdMsg, null);
+    }
+
+    /**
+     * Handles a response of the UI, whose token names this slot.
+     */
+    void onResponse(StkUserResponse response) {
+        handleResponse(response, StkSession.Event.RESPONSE);
+    }
+
+    /**
+     * Handles the end of the toolkit session of the slot.
+     */
+    void onSessionEnd() {
+        fireSessionEvent(StkSession.Event.SESSION_END, null, null);
+    }
+
+    /**
+     * Shows the main menu, if there is one.
+     */
+    void launchMainMenu() {
+        if (mMainCmd == null && mRestoredMenu == null) {
+            // nothing todo when no SET UP MENU command didn't arrive.
+            return;
+        }
+        mHost.launchMenu(this, null);
+    }
+
+    /**
+     * Returns true if the slot has a main menu, from the SIM or restored.
+     */
+    boolean hasMainMenu() {
+        return mRestoredMenu != null || (mMainCmd != null && !mMainMenuRemoved);
+    }
+
+    /**
+     * Shows the main menu restored from the snapshot until the SIM sends
+     * its own.
+     */
+    void onMenuRestored(Menu menu) {
+        if (mMainCmd != null) {
+            // The SIM was faster, its menu is the current one.
+            return;
+        }
+        mRestoredMenu = menu;
+        mMainMenuIndex = new StkMenuIndex(menu);
+        nextMainSeq();
+        if (mCurrentMenu == null) {
+            mCurrentMenu = menu;
+        }
+        mTimeToRestoredMenu = SystemClock.elapsedRealtime() - mCreateTime;
+        StkLog.d(this, "Main menu restored after " + mTimeToRestoredMenu + " ms");
+        mHost.onMainMenuChanged(this);
+        if (mMenuIsVisibile) {
+            mHost.launchMenu(this, null);
+        }
+    }
+
+    /**
+     * Schedules the end of the PLAY TONE command shown, once its tone
+     * started. Reports of an earlier command, or of a dialog recreated while
+     * the tone plays, are ignored.
+     */
+    void onToneStarted(long seq) {
+        StkCmdMessage cmd = mCurrentCmd;
+        if (cmd == null || cmd.getCmdType() != AppInterface.CommandType.PLAY_TONE
+                || seq != mCurrentSeq || cmd == mTimeoutCmd
+                || mSession.getState() != StkSession.State.WAIT_RESPONSE) {
+            return;
+        }
+        scheduleUiTimeout(cmd, getToneTimeout(cmd), StkCommands.RES_ID_DONE);
+    }
+
+    /*
+     * UI api used by StkMenuActivity to indicate if its on the foreground.
+     */
+    void indicateMenuVisibility(boolean visibility) {
+        mMenuIsVisibile = visibility;
+    }
+
+    boolean isMenuVisible() {
+        return mMenuIsVisibile;
+    }
+
+    /*
+     * UI api used by StkMenuActivity to get its Menu parameter.
+     */
+    Menu getMenu() {
+        return mCurrentMenu;
+    }
+
+    /*
+     * UI api used by StkMenuActivity to get the item index of a menu. The
+     * index built when the menu's command arrived is shared, other menus
+     * (e.g. restored from an icicle) get a new one.
+     */
+    StkMenuIndex getMenuIndex(Menu menu) {
+        StkMenuIndex index = mSelectMenuIndex;
+        if (index != null && index.isFor(menu)) {
+            return index;
+        }
+        index = mMainMenuIndex;
+        if (index != null && index.isFor(menu)) {
+            return index;
+        }
+        return new StkMenuIndex(menu);
+    }
+
+    /*
+     * UI api used by StkMenuActivity to get the sequence token of the main
+     * menu.
+     */
+    long getMainMenuSeq() {
+        return mMainSeq;
+    }
+
+    /*
+     * Returns the sequence token of the command the UI is asked to answer.
+     */
+    long getCurrentSeq() {
+        return mCurrentSeq;
+    }
+
+    /*
+     * UI api used by the UI element showing the current command to be
+     * notified of its timeout. If the command already timed out while no UI
+     * was attached, e.g. during activity recreation, the listener is called
+     * right away.
+     */
+    void setTimeoutListener(TimeoutListener listener) {
+        mTimeoutListener = listener;
+        StkCmdMessage timedOut = mTimedOutCmd;
+        if (listener != null && timedOut != null && timedOut == mTimeoutCmd) {
+            listener.onCmdTimeout();
+        }
+    }
+
+    void clearTimeoutListener(TimeoutListener listener) {
+        if (mTimeoutListener == listener) {
+            mTimeoutListener = null;
+        }
+    }
+
+    /*
+     * UI api used by StkInputActivity to push the timeout of the current
+     * command back while the user is typing. The command's budget is
+     * renewed as well, the user is evidently still at it.
+     */
+    void extendTimeout() {
+        StkCmdMessage cmd = mTimeoutCmd;
+        if (cmd != null) {
+            mTimeouts.extend(cmd, mTimeoutExtension);
+            mWatchdog.extend(cmd);
+        }
+    }
+
+    int getStaleResponses() {
+        return mStaleResponses;
+    }
+
+    int getDuplicateResponses() {
+        return mDuplicateResponses;
+    }
+
+    /*
+     * Returns the time in ms from the service's creation until the main
+     * menu was available, from the snapshot and from the SIM respectively.
+     * -1 if not available (yet).
+     */
+    long getTimeToRestoredMenu() {
+        return mTimeToRestoredMenu;
+    }
+
+    long getTimeToSimMenu() {
+        return mTimeToSimMenu;
+    }
+
+    StkCmdQueue getCmdQueue() {
+        return mCmdsQ;
+    }
+
+    StkSession getSession() {
+        return mSession;
+    }
+
+    StkWatchdog getWatchdog() {
+        return mWatchdog;
+    }
+
+    /**
+     * Prints the state of the slot, see StkAppService.dump().
+     */
+    void dump(PrintWriter pw) {
+        pw.println("Slot " + mSlot + " cmd=" + ((mCurrentCmd != null)
+                ? mCurrentCmd.getCmdType() : null) + " seq=" + mCurrentSeq
+                + " mainSeq=" + mMainSeq + " restoredMenu=" + mTimeToRestoredMenu
+                + "ms simMenu=" + mTimeToSimMenu + "ms");
+        pw.println("Queue: " + mCmdsQ);
+        pw.println("Responses: stale=" + mStaleResponses + " duplicate="
+                + mDuplicateResponses);
+        pw.println("Timeouts pending: " + mTimeouts.size());
+        mSession.dump(pw);
+        mWatchdog.dump(pw);
+    }
+
+    private final StkTimeoutScheduler.Callback mTimeoutCallback =
+            new StkTimeoutScheduler.Callback() {
+        public void onTimeout(Object key, int resId) {
+            mTimeoutsFired.inc();
+            StkUserResponse response = new StkUserResponse(resId);
+            if (key != mTimeoutCmd) {
+                // The session ended while the timeout was pending.
+                mStaleResponses++;
+                mTrace.record(StkTrace.EV_STALE_RESPONSE,
+                        ((StkCmdMessage) key).getCmdType(), resId);
+                return;
+            }
+            response.seq = mTimeoutSeq;
+            mTimedOutCmd = (StkCmdMessage) key;
+            // Handled exactly as if the UI had sent the response.
+            handleResponse(response, StkSession.Event.TIMEOUT);
+            TimeoutListener listener = mTimeoutListener;
+            if (listener != null) {
+                listener.onCmdTimeout();
+            }
+        }
+    };
+
+    private final StkWatchdog.Callback mWatchdogCallback =
+            new StkWatchdog.Callback() {
+        public void onBudgetExceeded(StkCmdMessage cmd) {
+            AppInterface.CommandType type = cmd.getCmdType();
+            if (mCmdsQ.remove(cmd)) {
+                // It would be shown too late for the SIM, which may already
+                // have given up on it.
+                mWatchdog.countExpired(type);
+                mTrace.record(StkTrace.EV_EXPIRED, type, mCmdsQ.size());
+                respondBusy(cmd);
+                return;
+            }
+            if (cmd == mCurrentCmd
+                    && mSession.getState() == StkSession.State.WAIT_RESPONSE) {
+                // The UI didn't answer, e.g. because it died: answer as if it
+                // had timed out and close whatever is left of it.
+                mWatchdog.countOverdue(type);
+                mTrace.record(StkTrace.EV_OVERDUE, type, 0);
+                StkUserResponse response =
+                        new StkUserResponse(StkCommands.RES_ID_TIMEOUT);
+                response.seq = mCurrentSeq;
+                mTimedOutCmd = cmd;
+                handleResponse(response, StkSession.Event.TIMEOUT);
+                TimeoutListener listener = mTimeoutListener;
+                if (listener != null) {
+                    listener.onCmdTimeout();
+                }
+            }
+        }
+    };
+
+    private void scheduleUiTimeout(StkCmdMessage cmd, int timeout, int resId) {
+        mTimeoutCmd = cmd;
+        mTimeoutSeq = mCurrentSeq;
+        mTimeoutExtension = timeout;
+        mTimeouts.schedule(cmd, timeout, resId);
+        mWatchdog.expect(cmd, timeout);
+    }
+
+    /*
+     * Returns the duration of a PLAY TONE command's tone.
+     */
+    private static int getToneTimeout(StkCmdMessage cmd) {
+        int timeout = StkApp.calculateDurationInMilis(
+                cmd.getToneSettings().duration);
+        return (timeout != 0) ? timeout : StkApp.TONE_DFEAULT_TIMEOUT;
+    }
+
+    /*
+     * Returns the command's own duration when present, the policy timeout
+     * of its type otherwise.
+     */
+    private int getUiTimeout(StkCmdMessage cmd, Duration duration) {
+        int timeout = StkApp.calculateDurationInMilis(duration);
+        return (timeout != 0) ? timeout : StkApp.getUiTimeout(cmd.getCmdType());
+    }
+
+    private void handleResponse(StkUserResponse response, StkSession.Event event) {
+        if (!acceptResponse(response)) {
+            return;
+        }
+        mTrace.record(event == StkSession.Event.TIMEOUT ? StkTrace.EV_TIMEOUT
+                : StkTrace.EV_RESPONSE, (mCurrentCmd != null)
+                ? mCurrentCmd.getCmdType() : null, response.resId);
+        StkCmdMessage timeoutCmd = mTimeoutCmd;
+        if (timeoutCmd != null) {
+            mTimeouts.cancel(timeoutCmd);
+        }
+        fireSessionEvent(event, null, response);
+    }
+
+    /*
+     * Returns true if the response is for a command still waiting for it,
+     * binds the response to that command and marks it answered. Main menu
+     * selections are only taken while no other command is shown. A response
+     * repeating the last answered one (e.g. a double tap) is a duplicate, a
+     * response for any other command (e.g. the late timeout of an old
+     * dialog) is stale; both are dropped.
+     */
+    private boolean acceptResponse(StkUserResponse response) {
+        long seq = response.seq;
+        if (seq == SEQ_NONE) {
+            response.cmd = mCurrentCmd;
+            return true;
+        }
+        AppInterface.CommandType type = (mCurrentCmd != null)
+                ? mCurrentCmd.getCmdType() : null;
+        if (seq == mCurrentSeq) {
+            // Later responses carrying this token are duplicates.
+            response.cmd = mSeqCmd;
+            mAnsweredSeq = seq;
+            nextSeq(null);
+            return true;
+        }
+        if (seq == mMainSeq && !mSession.isWaitingForUi()) {
+            // mMainCmd is null while only the restored menu is shown.
+            response.cmd = mMainCmd;
+            mAnsweredSeq = seq;
+            nextMainSeq();
+            return true;
+        }
+        if (seq == mAnsweredSeq) {
+            mDuplicateResponses++;
+            mTrace.record(StkTrace.EV_DUPLICATE_RESPONSE, type, response.resId);
+        } else {
+            mStaleResponses++;
+            mTrace.record(StkTrace.EV_STALE_RESPONSE, type, response.resId);
+        }
+        return false;
+    }
+
+    // Returns a new sequence token of this slot.
+    private long newSeq() {
+        return (mNextSeq++ << SLOT_BITS) | mSlot;
+    }
+
+    // Issues a new sequence token bound to cmd, responses carrying an
+    // older one are no longer accepted.
+    private void nextSeq(StkCmdMessage cmd) {
+        mCurrentSeq = newSeq();
+        mSeqCmd = cmd;
+    }
+
+    // Issues a new sequence token for the main menu.
+    private void nextMainSeq() {
+        mMainSeq = newSeq();
+    }
+
+    /*
+     * Moves the session state machine and performs the resulting action.
+     * cmdMsg and response are only used by the events that carry them.
+     */
+    private void fireSessionEvent(StkSession.Event event, StkCmdMessage cmdMsg,
+            StkUserResponse response) {
+        StkSession.Action action = mSession.fire(event);
+        switch (action) {
+        case HANDLE:
+            handleCmd(cmdMsg);
+            break;
+        case QUEUE:
+            queueCmd(cmdMsg);
+            break;
+        case QUEUE_SESSION_END:
+            // A single pending session end is enough, later ones would have
+            // the same effect. Session ends don't count against the queue's
+            // capacity, so it is always accepted.
+            if (!mCmdsQ.contains(StkCmdQueue.PRIORITY_SESSION_END)
+                    && !mCmdsQ.offer(ENTRY_SESSION_END, null)) {
+                StkLog.d(this, "Session end not queued, ending the session now");
+                handleSessionEnd();
+            }
+            break;
+        case RESPOND:
+            handleCmdResponse(response);
+            onSessionDone();
+            break;
+        case DISMISS:
+            // The terminal response was sent when the command arrived.
+            mLatencyTracker.onFinished(mCurrentCmd);
+            onSessionDone();
+            break;
+        case HANDLE_SESSION_END:
+            handleSessionEnd();
+            break;
+        case POST_DISPATCH:
+            mHandler.post(mDispatch);
+            break;
+        case HANDLE_QUEUED:
+            StkCmdQueue.Entry entry = mCmdsQ.poll();
+            mTrace.record(StkTrace.EV_DISPATCHED,
+                    (entry.msg != null) ? entry.msg.getCmdType() : null,
+                    (int) mCmdsQ.getLastWait());
+            if (entry.id == ENTRY_CMD) {
+                handleCmd(entry.msg);
+            } else {
+                handleSessionEnd();
+            }
+            break;
+        }
+    }
+
+    /*
+     * Tells the session that the current command or session end is complete,
+     * so the next queued entry can be dispatched.
+     */
+    private void onSessionDone() {
+        fireSessionEvent(queueEvent(StkSession.Event.DONE_EMPTY,
+                StkSession.Event.DONE_CMD, StkSession.Event.DONE_SESSION_END),
+                null, null);
+    }
+
+    // Picks one of the given events according to the queue head.
+    private StkSession.Event queueEvent(StkSession.Event empty,
+            StkSession.Event cmd, StkSession.Event sessionEnd) {
+        StkCmdQueue.Entry head = mCmdsQ.peek();
+        if (head == null) {
+            return empty;
+        }
+        return (head.id == ENTRY_CMD) ? cmd : sessionEnd;
+    }
+
+    /*
+     * Reconciles a SET UP MENU from the SIM with the restored snapshot and
+     * updates the snapshot.
+     */
+    private void reconcileMainMenu(boolean removed) {
+        mHost.saveMainMenu(this, removed ? null : mMainCmd.getMenu());
+        if (mTimeToSimMenu < 0) {
+            mTimeToSimMenu = SystemClock.elapsedRealtime() - mCreateTime;
+            StkLog.d(this, "Main menu from SIM after " + mTimeToSimMenu + " ms");
+        }
+        mRestoredMenu = null;
+
+        StkUserResponse selection = mPendingSelection;
+        mPendingSelection = null;
+        // The selection is only answered while no other command is shown,
+        // as for any other main menu selection.
+        if (selection != null && !removed && !mSession.isWaitingForUi()) {
+            // Replay the selection only if the item is still the same one.
+            String text = mMainMenuIndex.getItemText(selection.menuSelection);
+            if (text != null && text.equals(mPendingSelectionText)) {
+                selection.cmd = mMainCmd;
+                handleCmdResponse(selection);
+            }
+        }
+    }
+
+    private void queueCmd(StkCmdMessage cmdMsg) {
+        if (mCmdsQ.offer(ENTRY_CMD, cmdMsg)) {
+            mTrace.record(StkTrace.EV_QUEUED, cmdMsg.getCmdType(), mCmdsQ.size());
+            mLatencyTracker.onQueued(cmdMsg);
+        } else {
+            // No room left, let the SIM know right away instead of having
+            // it wait for a response that would come too late anyway.
+            mTrace.record(StkTrace.EV_QUEUE_FULL, cmdMsg.getCmdType(), mCmdsQ.size());
+            respondBusy(cmdMsg);
+        }
+    }
+
+    /*
+     * Answers a command that won't be shown with
+     * TERMINAL_CRNTLY_UNABLE_TO_PROCESS.
+     */
+    private void respondBusy(StkCmdMessage cmdMsg) {
+        StkResponseMessage resMsg = new StkResponseMessage(cmdMsg);
+        resMsg.setResultCode(ResultCode.TERMINAL_CRNTLY_UNABLE_TO_PROCESS);
+        mStkService.onCmdResponse(resMsg);
+        recordTerminalResponse(cmdMsg.getCmdType(),
+                ResultCode.TERMINAL_CRNTLY_UNABLE_TO_PROCESS);
+        onAnswered(cmdMsg);
+        mLatencyTracker.onResponseSent(cmdMsg);
+    }
+
+    private void recordTerminalResponse(AppInterface.CommandType type,
+            ResultCode resultCode) {
+        mTrace.record(StkTrace.EV_TERMINAL_RESPONSE, type, resultCode.value());
+        mResultCodes[resultCode.ordinal()].inc();
+    }
+
+    /*
+     * Tells the watchdog that the command needs no terminal response any
+     * more.
+     */
+    private void onAnswered(StkCmdMessage cmdMsg) {
+        mWatchdog.release(cmdMsg);
+    }
+
+    private void handleSessionEnd() {
+        mTrace.record(StkTrace.EV_SESSION_END, null, 0);
+        // The SIM ended the session, whatever was shown needs no response.
+        onAnswered(mCurrentCmd);
+        mLatencyTracker.onFinished(mCurrentCmd);
+        mCurrentCmd = mMainCmd;
+        nextSeq(null);
+        mTimeoutCmd = null;
+        lastSelectedItem = null;
+        // In case of SET UP MENU command which removed the app, don't
+        // update the current menu member.
+        if (mCurrentMenu != null && mMainCmd != null) {
+            mCurrentMenu = mMainCmd.getMenu();
+        }
+        if (mMenuIsVisibile) {
+            mHost.launchMenu(this, null);
+        }
+        // In case a launch browser command was just confirmed, launch that url.
+        if (mBrowserSettings != null) {
+            BrowserSettings settings = mBrowserSettings;
+            mBrowserSettings = null;
+            launchBrowser(settings);
+        }
+        onSessionDone();
+    }
+
+    private void handleCmd(StkCmdMessage cmdMsg) {
+        if (cmdMsg == null) {
+            return;
+        }
+        // save local reference for state tracking. Informative commands
+        // don't replace the command the UI is showing.
+        boolean interactive = StkCommands.isInteractive(cmdMsg.getCmdType());
+        boolean current = interactive || !mSession.isWaitingForUi();
+        if (current) {
+            mCurrentCmd = cmdMsg;
+            // Only commands the UI answers get a new token.
+            if (interactive) {
+                nextSeq(cmdMsg);
+            }
+        }
+        mLatencyTracker.onHandled(cmdMsg, current);
+        boolean waitForUsersResponse = true;
+
+        mTrace.record(StkTrace.EV_HANDLED, cmdMsg.getCmdType(), 0);
+        switch (cmdMsg.getCmdType()) {
+        case DISPLAY_TEXT:
+            TextMessage msg = cmdMsg.geTextMessage();
+            if (!msg.responseNeeded) {
+                // The telephony layer already sent the terminal response.
+                onAnswered(cmdMsg);
+                fireSessionEvent(StkSession.Event.IMMEDIATE_RESPONSE, null, null);
+            }
+            if (lastSelectedItem != null) {
+                msg.title = lastSelectedItem;
+            } else if (mMainCmd != null){
+                msg.title = mMainCmd.getMenu().title;
+            } else {
+                // TODO: get the carrier name from the SIM
+                msg.title = "";
+            }
+            scheduleUiTimeout(cmdMsg, getUiTimeout(cmdMsg, msg.duration),
+                    StkCommands.RES_ID_TIMEOUT);
+            mHost.launchTextDialog(this, msg);
+            break;
+        case SELECT_ITEM:
+            mSelectMenuIndex = new StkMenuIndex(cmdMsg.getMenu());
+            mCurrentMenu = cmdMsg.getMenu();
+            scheduleUiTimeout(cmdMsg, getUiTimeout(cmdMsg, null),
+                    StkCommands.RES_ID_TIMEOUT);
+            mHost.launchMenu(this, cmdMsg.getMenu());
+            break;
+        case SET_UP_MENU:
+            // The telephony layer sends its terminal response.
+            waitForUsersResponse = false;
+            mMainCmd = cmdMsg;
+            nextMainSeq();
+            mMainMenuIndex = new StkMenuIndex(cmdMsg.getMenu());
+            mCurrentMenu = cmdMsg.getMenu();
+            boolean removed = removeMenu();
+            mMainMenuRemoved = removed;
+            if (removed) {
+                mTrace.record(StkTrace.EV_MENU, cmdMsg.getCmdType(), 0);
+                mCurrentMenu = null;
+            } else {
+                mTrace.record(StkTrace.EV_MENU, cmdMsg.getCmdType(), 1);
+            }
+            reconcileMainMenu(removed);
+            mHost.onMainMenuChanged(this);
+            if (mMenuIsVisibile) {
+                mHost.launchMenu(this, null);
+            }
+            break;
+        case GET_INPUT:
+        case GET_INKEY:
+            scheduleUiTimeout(cmdMsg, getUiTimeout(cmdMsg, null),
+                    StkCommands.RES_ID_TIMEOUT);
+            mHost.launchInput(this, cmdMsg.geInput());
+            break;
+        case SET_UP_IDLE_MODE_TEXT:
+            waitForUsersResponse = false;
+            mHost.showIdleText(cmdMsg.geTextMessage());
+            break;
+        case SEND_DTMF:
+        case SEND_SMS:
+        case SEND_SS:
+        case SEND_USSD:
+            waitForUsersResponse = false;
+            mHost.showEventMessage(cmdMsg.geTextMessage());
+            break;
+        case LAUNCH_BROWSER:
+            scheduleUiTimeout(cmdMsg, getUiTimeout(cmdMsg,
+                    cmdMsg.geTextMessage().duration), StkCommands.RES_ID_TIMEOUT);
+            launchConfirmationDialog(cmdMsg.geTextMessage());
+            break;
+        case SET_UP_CALL:
+            scheduleUiTimeout(cmdMsg, getUiTimeout(cmdMsg,
+                    cmdMsg.getCallSettings().confirmMsg.duration),
+                    StkCommands.RES_ID_TIMEOUT);
+            launchConfirmationDialog(cmdMsg.getCallSettings().confirmMsg);
+            break;
+        case PLAY_TONE:
+            // The tone's duration is scheduled once ToneDialog started it,
+            // see onToneStarted().
+            mHost.launchToneDialog(this, cmdMsg);
+            break;
+        }
+
+        if (!waitForUsersResponse) {
+            mLatencyTracker.onFinished(cmdMsg);
+        }
+    }
+
+    private void handleCmdResponse(StkUserResponse response) {
+        // The command the response's token is bound to, not necessarily the
+        // current one: e.g. a main menu selection while idle text is shown.
+        StkCmdMessage cmd = response.cmd;
+        if (cmd == null) {
+            if (mRestoredMenu != null
+                    && response.resId == StkCommands.RES_ID_MENU_SELECTION) {
+                // Selection on the restored main menu, keep it until the SIM
+                // sends its SET UP MENU.
+                mPendingSelection = response;
+                mPendingSelectionText = mMainMenuIndex
+                        .getItemText(response.menuSelection);
+            }
+            return;
+        }
+        StkResponseMessage resMsg = new StkResponseMessage(cmd);
+        AppInterface.CommandType type = cmd.getCmdType();
+        boolean yesNo = false;
+        boolean clearAfterDelay = false;
+
+        // set response parameters
+        switch(response.resId) {
+        case StkCommands.RES_ID_MENU_SELECTION:
+            int menuSelection = response.menuSelection;
+            switch(type) {
+            case SET_UP_MENU:
+            case SELECT_ITEM:
+                lastSelectedItem = getItemName(cmd, menuSelection);
+                resMsg.setMenuSelection(menuSelection);
+                break;
+            }
+            break;
+        case StkCommands.RES_ID_INPUT:
+            String input = response.input;
+            yesNo = cmd.geInput().yesNo;
+            if (yesNo) {
+                boolean yesNoSelection = input
+                        .equals(StkCommands.YES_STR_RESPONSE);
+                resMsg.setYesNo(yesNoSelection);
+            } else if (!response.help) {
+                resMsg.setInput(input);
+            }
+            break;
+        case StkCommands.RES_ID_CONFIRM:
+            boolean confirmed = response.confirmed;
+            switch (type) {
+            case LAUNCH_BROWSER:
+                if (confirmed) {
+                    mBrowserSettings = cmd.getBrowserSettings();
+                }
+                break;
+            case SET_UP_CALL:
+                resMsg.setConfirmation(confirmed);
+                if (confirmed) {
+                    launchCallMsg(cmd);
+                }
+                break;
+            }
+            break;
+        case StkCommands.RES_ID_DONE:
+            break;
+        case StkCommands.RES_ID_BACKWARD:
+        case StkCommands.RES_ID_END_SESSION:
+            break;
+        case StkCommands.RES_ID_TIMEOUT:
+            clearAfterDelay = (type == AppInterface.CommandType.DISPLAY_TEXT)
+                    && !cmd.geTextMessage().userClear;
+            break;
+        default:
+            StkLog.d(this, "Unknown result id");
+            return;
+        }
+
+        // set result code
+        ResultCode resultCode = StkCommands.resultCodeFor(type, response.resId,
+                response.help, response.confirmed, yesNo, clearAfterDelay);
+        if (resultCode != null) {
+            resMsg.setResultCode(resultCode);
+        }
+        mStkService.onCmdResponse(resMsg);
+        recordTerminalResponse(type, (resultCode != null) ? resultCode
+                : ResultCode.OK);
+        onAnswered(cmd);
+        mLatencyTracker.onResponseSent(cmd);
+    }
+
+    private void launchConfirmationDialog(TextMessage msg) {
+        msg.title = lastSelectedItem;
+        mHost.launchConfirmationDialog(this, msg);
+    }
+
+    private void launchBrowser(BrowserSettings settings) {
+        if (settings == null) {
+            return;
+        }
+        mHost.launchBrowser(settings);
+        // give the browser some time to start before processing the next
+        // interactive command. this is good for scenarios where a related
+        // DISPLAY TEXT command is followed immediately.
+        int settleTime = StkApp.getBrowserSettleTimeout();
+        if (settleTime > 0) {
+            fireSessionEvent(StkSession.Event.BROWSER_LAUNCHED, null, null);
+            mHandler.removeCallbacks(mBrowserSettled);
+            mHandler.postDelayed(mBrowserSettled, settleTime);
+        }
+    }
+
+    private void launchCallMsg(StkCmdMessage cmd) {
+        TextMessage msg = cmd.getCallSettings().callMsg;
+        if (msg.text == null || msg.text.length() == 0) {
+            return;
+        }
+        msg.title = lastSelectedItem;
+        mHost.showCallMessage(msg);
+    }
+
+    private String getItemName(StkCmdMessage cmd, int itemId) {
+        Menu menu = cmd.getMenu();
+        if (menu == null) {
+            return null;
+        }
+        return getMenuIndex(menu).getItemText(itemId);
+    }
+
+    private boolean removeMenu() {
+        try {
+            if (mCurrentMenu.items.size() == 1 &&
+                mCurrentMenu.items.get(0) == null) {
+                return true;
+            }
+        } catch (NullPointerException e) {
+            StkLog.d(this, "Unable to get Menu's items size");
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "StkSlotEngine slot=" + mSlot;
+    }
+}
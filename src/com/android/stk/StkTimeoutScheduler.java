@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.stk;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * Single scheduler for the timeouts of the commands shown by the STK UI,
+ * owned by StkAppService and run on its thread.
+ *
+ * Timeouts are kept in a deadline ordered binary heap, keyed by the command
+ * they belong to, and a single handler callback is armed for the earliest
+ * one. Cancelling is O(1): the entry is only marked and dropped when it
+ * reaches the top of the heap. Extending a deadline is lazy as well, the
+ * entry is moved when its original deadline is reached.
+ */
+final class StkTimeoutScheduler {
+    /**
+     * Receives expired timeouts, on the handler's thread.
+     */
+    interface Callback {
+        void onTimeout(Object key, int resId);
+    }
+
+    private static final class Timeout {
+        final Object key;
+        final int resId;
+        // Deadline the heap position is based on.
+        long heapDeadline;
+        // Actual deadline, never earlier than heapDeadline.
+        long deadline;
+        boolean cancelled = false;
+
+        Timeout(Object key, int resId, long deadline) {
+            this.key = key;
+            this.resId = resId;
+            this.heapDeadline = deadline;
+            this.deadline = deadline;
+        }
+    }
+
+    private final Handler mHandler;
+    private final Callback mCallback;
+    private final IdentityHashMap<Object, Timeout> mPending =
+            new IdentityHashMap<Object, Timeout>();
+    private Timeout[] mHeap = new Timeout[8];
+    private int mSize = 0;
+    // uptimeMillis() the tick is posted for, Long.MAX_VALUE when not armed.
+    private long mArmedAt = Long.MAX_VALUE;
+
+    private final Runnable mTick = new Runnable() {
+        public void run() {
+            onTick();
+        }
+    };
+
+    StkTimeoutScheduler(Handler handler, Callback callback) {
+        mHandler = handler;
+        mCallback = callback;
+    }
+
+    /**
+     * Schedules a timeout for the given key, replacing any pending one.
+     *
+     * @param key Command the timeout belongs to.
+     * @param timeout Time from now in ms.
+     * @param resId Response id delivered when the timeout expires.
+     */
+    synchronized void schedule(Object key, long timeout, int resId) {
+        cancelLocked(key);
+        Timeout t = new Timeout(key, resId, SystemClock.uptimeMillis() + timeout);
+        mPending.put(key, t);
+        push(t);
+        arm();
+    }
+
+    /**
+     * Cancels the pending timeout of the given key, if any.
+     */
+    synchronized void cancel(Object key) {
+        cancelLocked(key);
+    }
+
+    /**
+     * Moves the deadline of a pending timeout to at least timeout ms from
+     * now. Cheap enough to be called on every key stroke.
+     */
+    synchronized void extend(Object key, long timeout) {
+        Timeout t = mPending.get(key);
+        if (t != null) {
+            long deadline = SystemClock.uptimeMillis() + timeout;
+            if (deadline > t.deadline) {
+                t.deadline = deadline;
+            }
+        }
+    }
+
+    synchronized boolean isPending(Object key) {
+        return mPending.containsKey(key);
+    }
+
+    synchronized int size() {
+        return mPending.size();
+    }
+
+    private void cancelLocked(Object key) {
+        Timeout t = mPending.remove(key);
+        if (t != null) {
+            t.cancelled = true;
+        }
+    }
+
+    private void onTick() {
+        ArrayList<Timeout> expired = null;
+        synchronized (this) {
+            mArmedAt = Long.MAX_VALUE;
+            long now = SystemClock.uptimeMillis();
+            while (mSize > 0) {
+                Timeout t = mHeap[0];
+                if (t.cancelled) {
+                    pop();
+                } else if (t.deadline > t.heapDeadline) {
+                    // Deadline was extended, move the entry.
+                    pop();
+                    t.heapDeadline = t.deadline;
+                    push(t);
+                } else if (t.deadline <= now) {
+                    pop();
+                    mPending.remove(t.key);
+                    if (expired == null) {
+                        expired = new ArrayList<Timeout>(1);
+                    }
+                    expired.add(t);
+                } else {
+                    break;
+                }
+            }
+            arm();
+        }
+        if (expired != null) {
+            for (Timeout t : expired) {
+                mCallback.onTimeout(t.key, t.resId);
+            }
+        }
+    }
+
+    private void arm() {
+        if (mSize == 0) {
+            return;
+        }
+        long when = mHeap[0].heapDeadline;
+        if (when < mArmedAt) {
+            mHandler.removeCallbacks(mTick);
+            mHandler.postAtTime(mTick, when);
+            mArmedAt = when;
+        }
+    }
+
+    private void push(Timeout t) {
+        if (mSize == mHeap.length) {
+            Timeout[] heap = new Timeout[mSize * 2];
+            System.arraycopy(mHeap, 0, heap, 0, mSize);
+            mHeap = heap;
+        }
+        int i = mSize++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (mHeap[parent].heapDeadline <= t.heapDeadline) {
+                break;
+            }
+            mHeap[i] = mHeap[parent];
+            i = parent;
+        }
+        mHeap[i] = t;
+    }
+
+    private Timeout pop() {
+        Timeout top = mHeap[0];
+        Timeout last = mHeap[--mSize];
+        mHeap[mSize] = null;
+        if (mSize > 0) {
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= mSize) {
+                    break;
+                }
+                if (child + 1 < mSize
+                        && mHeap[child + 1].heapDeadline < mHeap[child].heapDeadline) {
+                    child++;
+                }
+                if (last.heapDeadline <= mHeap[child].heapDeadline) {
+                    break;
+                }
+                mHeap[i] = mHeap[child];
+                i = child;
+            }
+            mHeap[i] = last;
+        }
+        return top;
+    }
+}
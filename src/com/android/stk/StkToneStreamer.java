@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.stk;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.android.internal.telephony.gsm.stk.StkLog;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streams tones rendered by StkToneSynth through an AudioTrack, on a
+ * dedicated thread. Exactly the frames of the requested duration are
+ * written, so the tone ends on the sample whatever the handler latency.
+ */
+final class StkToneStreamer {
+    // 32 ms at 8 kHz, bounds how late stop() silences the tone.
+    private static final int CHUNK_FRAMES = 256;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Object mLock = new Object();
+    // Reused for every write, AudioTrack only takes arrays.
+    private final short[] mChunk = new short[CHUNK_FRAMES];
+    // Guarded by mLock.
+    private AudioTrack mTrack = null;
+    // Incremented under mLock by every play() and stop(), a stream stops
+    // as soon as it isn't the latest one.
+    private volatile int mGeneration = 0;
+
+    // Posted last by quit(): the looper only quits once the track is
+    // released, nothing queued before it is dropped.
+    private final Runnable mQuit = new Runnable() {
+        public void run() {
+            synchronized (mLock) {
+                if (mTrack != null) {
+                    mTrack.release();
+                    mTrack = null;
+                }
+            }
+            mThread.quit();
+        }
+    };
+
+    StkToneStreamer() {
+        mThread = new HandlerThread("Stk Tone");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Plays duration ms of the given tone period, stopping any tone in
+     * progress.
+     */
+    void play(final ByteBuffer period, final boolean repeat, long duration) {
+        final int generation;
+        synchronized (mLock) {
+            generation = ++mGeneration;
+            silenceLocked();
+        }
+        final int frames = StkToneSynth.frames(duration, StkToneSynth.SAMPLE_RATE);
+        mHandler.post(new Runnable() {
+            public void run() {
+                stream(generation, period, repeat, frames);
+            }
+        });
+    }
+
+    void stop() {
+        synchronized (mLock) {
+            mGeneration++;
+            silenceLocked();
+        }
+    }
+
+    /**
+     * Stops the tone and releases the AudioTrack and the thread. The
+     * streamer can't be used afterwards.
+     */
+    void quit() {
+        stop();
+        mHandler.post(mQuit);
+    }
+
+    private void stream(int generation, ByteBuffer period, boolean repeat,
+            int frames) {
+        AudioTrack track;
+        synchronized (mLock) {
+            if (generation != mGeneration) {
+                return;
+            }
+            track = obtainTrackLocked();
+            if (track == null) {
+                return;
+            }
+            track.flush();
+            track.play();
+        }
+        long position = 0;
+        while (position < frames && generation == mGeneration) {
+            int count = (int) Math.min(CHUNK_FRAMES, frames - position);
+            StkToneSynth.fill(period, repeat, position, mChunk, count);
+            int written = track.write(mChunk, 0, count);
+            if (written <= 0) {
+                break;
+            }
+            position += written;
+        }
+        synchronized (mLock) {
+            if (generation == mGeneration) {
+                // In stream mode the frames already written still play out.
+                track.stop();
+            }
+        }
+    }
+
+    private void silenceLocked() {
+        if (mTrack != null) {
+            // pause() also unblocks a write in progress.
+            mTrack.pause();
+            mTrack.flush();
+        }
+    }
+
+    private AudioTrack obtainTrackLocked() {
+        if (mTrack != null) {
+            return mTrack;
+        }
+        int size = AudioTrack.getMinBufferSize(StkToneSynth.SAMPLE_RATE,
+                AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        AudioTrack track = new AudioTrack(AudioManager.STREAM_SYSTEM,
+                StkToneSynth.SAMPLE_RATE, AudioFormat.CHANNEL_OUT_MONO,
+                AudioFormat.ENCODING_PCM_16BIT, Math.max(size, CHUNK_FRAMES * 4),
+                AudioTrack.MODE_STREAM);
+        if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+            StkLog.d(this, "Unable to create AudioTrack");
+            track.release();
+            return null;
+        }
+        mTrack = track;
+        return track;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.stk;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * PCM synthesis of the PLAY TONE supervisory and proprietary tones.
+ *
+ * A tone is described by a cadence Pattern. Rendering a pattern produces
+ * one period of 16 bit mono samples in a direct buffer, which can be shared
+ * by any number of players: fill() reads it by absolute index, looping or
+ * padding with silence to produce a stream of any length. Depends on the
+ * java.* classes only.
+ */
+final class StkToneSynth {
+    private StkToneSynth() {}
+
+    static final int SAMPLE_RATE = 8000;
+    // Half of full scale, leaves headroom for dual frequency segments.
+    private static final int AMPLITUDE = 16383;
+    // Fade in and out of tone segments, avoids clicks.
+    private static final int RAMP_MS = 2;
+
+    /**
+     * One step of a cadence, silent when there are no frequencies.
+     */
+    static final class Segment {
+        final int duration;
+        final int[] freqs;
+
+        Segment(int duration, int... freqs) {
+            this.duration = duration;
+            this.freqs = freqs;
+        }
+    }
+
+    /**
+     * Tone cadence. Repeating patterns loop for the whole tone duration,
+     * others play once and are followed by silence.
+     */
+    static final class Pattern {
+        final boolean repeat;
+        final Segment[] segments;
+
+        Pattern(boolean repeat, Segment... segments) {
+            this.repeat = repeat;
+            this.segments = segments;
+        }
+    }
+
+    private static Segment on(int duration, int... freqs) {
+        return new Segment(duration, freqs);
+    }
+
+    private static Segment off(int duration) {
+        return new Segment(duration);
+    }
+
+    // Supervisory tones, CEPT values as used by ToneGenerator.
+    static final Pattern DIAL = new Pattern(true, on(1000, 425));
+    static final Pattern BUSY = new Pattern(true, on(500, 425), off(500));
+    static final Pattern CONGESTION = new Pattern(true, on(200, 425), off(200));
+    static final Pattern RADIO_ACK = new Pattern(false, on(200, 425));
+    static final Pattern RADIO_NOTAVAIL = new Pattern(false,
+            on(200, 425), off(200), on(200, 425), off(200), on(200, 425));
+    static final Pattern ERROR = new Pattern(true,
+            on(330, 950), on(330, 1400), on(330, 1800), off(1000));
+    static final Pattern CALL_WAITING = new Pattern(true,
+            on(200, 425), off(600), on(200, 425), off(3000));
+    static final Pattern RINGTONE = new Pattern(true, on(1000, 425), off(4000));
+
+    // Proprietary tones.
+    static final Pattern BEEP = new Pattern(false, on(100, 400, 1200));
+    static final Pattern ACK = new Pattern(false,
+            on(100, 1200), off(100), on(100, 1200));
+    static final Pattern NACK = new Pattern(false, on(400, 300, 400, 500));
+
+    /**
+     * Returns the number of frames in duration ms at the given rate.
+     */
+    static int frames(long duration, int sampleRate) {
+        if (duration <= 0) {
+            return 0;
+        }
+        long frames = duration * sampleRate / 1000;
+        return frames > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) frames;
+    }
+
+    /**
+     * Renders one period of the pattern into a direct, native order buffer
+     * of 16 bit samples. The buffer's limit is the period length.
+     *
+     * A segment is only ramped where the tone changes, i.e. next to silence
+     * or other frequencies, looping around for repeating patterns. Phases
+     * run on from the start of the period, so a tone continued by the next
+     * segment, or by the next loop of a continuous pattern such as DIAL,
+     * plays on without a dip.
+     */
+    static ByteBuffer render(Pattern pattern, int sampleRate) {
+        Segment[] segments = pattern.segments;
+        int total = 0;
+        for (Segment s : segments) {
+            total += frames(s.duration, sampleRate);
+        }
+        ByteBuffer pcm = ByteBuffer.allocateDirect(total * 2)
+                .order(ByteOrder.nativeOrder());
+        int ramp = Math.max(1, frames(RAMP_MS, sampleRate));
+        int start = 0;
+        for (int k = 0; k < segments.length; k++) {
+            Segment s = segments[k];
+            int n = frames(s.duration, sampleRate);
+            int tones = s.freqs.length;
+            boolean rampIn = !continues(s, neighbour(pattern, k - 1));
+            boolean rampOut = !continues(s, neighbour(pattern, k + 1));
+            for (int i = 0; i < n; i++) {
+                if (tones == 0) {
+                    pcm.putShort((short) 0);
+                    continue;
+                }
+                double v = 0;
+                for (int f : s.freqs) {
+                    v += Math.sin(2 * Math.PI * f * (start + i) / sampleRate);
+                }
+                double envelope = 1.0;
+                if (rampIn) {
+                    envelope = Math.min(envelope, (double) i / ramp);
+                }
+                if (rampOut) {
+                    envelope = Math.min(envelope, (double) (n - 1 - i) / ramp);
+                }
+                pcm.putShort((short) Math.round(v / tones * envelope * AMPLITUDE));
+            }
+            start += n;
+        }
+        pcm.flip();
+        return pcm;
+    }
+
+    /**
+     * Returns the segment played next to the k-th one, null at the ends of
+     * a pattern that doesn't repeat.
+     */
+    private static Segment neighbour(Pattern pattern, int k) {
+        int count = pattern.segments.length;
+        if (k < 0 || k >= count) {
+            if (!pattern.repeat) {
+                return null;
+            }
+            k = (k + count) % count;
+        }
+        return pattern.segments[k];
+    }
+
+    /**
+     * Returns true if the tone of segment s plays on into the other one.
+     */
+    private static boolean continues(Segment s, Segment other) {
+        return other != null && s.freqs.length > 0
+                && Arrays.equals(s.freqs, other.freqs);
+    }
+
+    /**
+     * Copies count frames of the tone stream, starting at frame position,
+     * into dst. The stream is the period looped when repeat is set, or the
+     * period followed by silence otherwise.
+     *
+     * @return the number of frames copied.
+     */
+    static int fill(ByteBuffer period, boolean repeat, long position,
+            short[] dst, int count) {
+        int length = period.limit() / 2;
+        for (int i = 0; i < count; i++) {
+            long frame = position + i;
+            if (repeat && length > 0) {
+                frame %= length;
+            }
+            dst[i] = frame < length ? period.getShort((int) frame * 2) : 0;
+        }
+        return count;
+    }
+}
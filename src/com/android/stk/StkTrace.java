@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.stk;
+
+import android.os.SystemClock;
+
+import com.android.internal.telephony.gsm.stk.AppInterface;
+
+import java.io.PrintWriter;
+
+/**
+ * Binary event trace of the command path, replacing per command string
+ * logging.
+ *
+ * Events go into a preallocated ring of longs, two per event: the
+ * elapsedRealtime() timestamp and the event, command type and argument
+ * packed in one word. Recording allocates nothing; the ring is only turned
+ * into text when it is dumped.
+ */
+final class StkTrace {
+    // Event types
+    static final int EV_RECEIVED = 1;
+    static final int EV_QUEUED = 2;
+    // The queue was full, arg is the queue size.
+    static final int EV_QUEUE_FULL = 3;
+    // A queued entry was dispatched, arg is its wait in ms.
+    static final int EV_DISPATCHED = 4;
+    static final int EV_HANDLED = 5;
+    // A UI response arrived, arg is the RES_ID_* value.
+    static final int EV_RESPONSE = 6;
+    // A timeout expired, arg is the RES_ID_* value.
+    static final int EV_TIMEOUT = 7;
+    // A terminal response was sent, arg is the result code value.
+    static final int EV_TERMINAL_RESPONSE = 8;
+    static final int EV_SESSION_END = 9;
+    // The SET UP MENU installed (arg 1) or removed (arg 0) the app.
+    static final int EV_MENU = 10;
+    static final int EV_BOOT_COMPLETED = 11;
+    // A response for a command that is gone or already answered was
+    // dropped, arg is the RES_ID_* value.
+    static final int EV_STALE_RESPONSE = 12;
+    static final int EV_DUPLICATE_RESPONSE = 13;
+    // The watchdog answered a shown command whose budget ran out.
+    static final int EV_OVERDUE = 14;
+    // The watchdog dropped a queued command whose budget ran out, arg is
+    // the remaining queue size.
+    static final int EV_EXPIRED = 15;
+
+    private static final String[] EVENT_NAMES = {
+        "?", "received", "queued", "queue full", "dispatched", "handled",
+        "response", "timeout", "terminal response", "session end", "menu",
+        "boot completed", "stale response", "duplicate response", "overdue",
+        "expired"
+    };
+
+    private static final int DEFAULT_SIZE = 256;
+
+    private final long[] mRing;
+    private final int mSize;
+    private int mNext = 0;
+    private long mCount = 0;
+
+    StkTrace() {
+        this(DEFAULT_SIZE);
+    }
+
+    StkTrace(int size) {
+        mSize = size;
+        mRing = new long[size * 2];
+    }
+
+    /**
+     * Records an event.
+     *
+     * @param type Command type the event is about, may be null.
+     */
+    void record(int event, AppInterface.CommandType type, int arg) {
+        long word = ((long) event << 56)
+                | ((long) (type != null ? type.ordinal() + 1 : 0) << 48)
+                | (arg & 0xffffffffL);
+        long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            int i = mNext * 2;
+            mRing[i] = now;
+            mRing[i + 1] = word;
+            mNext = (mNext + 1) % mSize;
+            mCount++;
+        }
+    }
+
+    synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Prints the recorded events, oldest first.
+     */
+    synchronized void dump(PrintWriter pw) {
+        AppInterface.CommandType[] types = AppInterface.CommandType.values();
+        int count = (int) Math.min(mCount, mSize);
+        pw.println("Trace: " + mCount + " events, last " + count);
+        for (int n = 0; n < count; n++) {
+            int i = ((mNext - count + n + mSize) % mSize) * 2;
+            long word = mRing[i + 1];
+            int event = (int) (word >>> 56);
+            int type = (int) ((word >>> 48) & 0xff);
+            int arg = (int) word;
+            StringBuilder sb = new StringBuilder("  ");
+            sb.append(mRing[i]).append(' ');
+            sb.append(event < EVENT_NAMES.length ? EVENT_NAMES[event] : "?");
+            if (type > 0 && type <= types.length) {
+                sb.append(' ').append(types[type - 1].name());
+            }
+            sb.append(' ').append(arg);
+            pw.println(sb.toString());
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.stk;
+
+import com.android.internal.telephony.gsm.stk.StkCmdMessage;
+
+/**
+ * User response to a command, as delivered by the STK UI elements. Unused
+ * fields keep their default values.
+ */
+final class StkUserResponse {
+    final int resId;
+    int menuSelection = 0;
+    String input = null;
+    boolean help = false;
+    boolean confirmed = false;
+    // Sequence token of the command the response is for, and the command
+    // it resolved to once accepted. The token also names the slot.
+    long seq = StkSlotEngine.SEQ_NONE;
+    StkCmdMessage cmd = null;
+    // System.nanoTime() when the response was created, used to measure how
+    // long the delivery to the service thread took.
+    final long createTime;
+    boolean direct = false;
+
+    StkUserResponse(int resId) {
+        this(resId, System.nanoTime());
+    }
+
+    StkUserResponse(int resId, long createTime) {
+        this.resId = resId;
+        this.createTime = createTime;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.stk;
+
+import android.os.Handler;
+
+import com.android.internal.telephony.gsm.stk.AppInterface;
+import com.android.internal.telephony.gsm.stk.StkCmdMessage;
+
+import java.io.PrintWriter;
+import java.util.IdentityHashMap;
+
+/**
+ * Deadline watchdog of the interactive commands the SIM waits a terminal
+ * response for.
+ *
+ * Every command is given the budget of its type (see StkApp.getCmdBudget())
+ * when it arrives, and released once it's answered. Once shown, a command's
+ * budget is raised to cover the UI timeout it runs, e.g. the duration of a
+ * long tone, plus StkApp.CMD_BUDGET_MARGIN. A command still unanswered when
+ * its budget runs out is handed to the Callback, which answers it on behalf
+ * of the UI. Deadlines share the StkTimeoutScheduler heap implementation, so
+ * watching and releasing are cheap. Overdue (shown) and expired (still
+ * queued) commands are counted per type.
+ */
+final class StkWatchdog {
+    /**
+     * Receives the commands whose budget ran out, on the handler's thread.
+     */
+    interface Callback {
+        void onBudgetExceeded(StkCmdMessage cmd);
+    }
+
+    private static final AppInterface.CommandType[] TYPES =
+            AppInterface.CommandType.values();
+
+    private final StkTimeoutScheduler mDeadlines;
+    // Budget of each watched command, read when it arrived and raised by
+    // expect().
+    private final IdentityHashMap<StkCmdMessage, Integer> mBudgets =
+            new IdentityHashMap<StkCmdMessage, Integer>();
+    private final int[] mOverdue = new int[TYPES.length];
+    private final int[] mExpired = new int[TYPES.length];
+
+    StkWatchdog(Handler handler, final Callback callback) {
+        mDeadlines = new StkTimeoutScheduler(handler,
+                new StkTimeoutScheduler.Callback() {
+            public void onTimeout(Object key, int resId) {
+                synchronized (StkWatchdog.this) {
+                    mBudgets.remove(key);
+                }
+                callback.onBudgetExceeded((StkCmdMessage) key);
+            }
+        });
+    }
+
+    /**
+     * Starts the budget of a command that arrived.
+     */
+    synchronized void watch(StkCmdMessage cmd) {
+        int budget = StkApp.getCmdBudget(cmd.getCmdType());
+        if (budget > 0) {
+            mBudgets.put(cmd, budget);
+            mDeadlines.schedule(cmd, budget, 0);
+        }
+    }
+
+    /**
+     * Gives a shown command at least its UI timeout plus the margin from
+     * now, the watchdog only steps in once the UI failed to answer in time.
+     * The raised budget is kept for extend().
+     */
+    synchronized void expect(StkCmdMessage cmd, int uiTimeout) {
+        Integer budget = mBudgets.get(cmd);
+        if (budget == null) {
+            return;
+        }
+        int needed = uiTimeout + StkApp.CMD_BUDGET_MARGIN;
+        if (needed > budget) {
+            budget = needed;
+            mBudgets.put(cmd, budget);
+        }
+        mDeadlines.extend(cmd, budget);
+    }
+
+    /**
+     * Gives a command at least a full budget from now, e.g. while the user
+     * is still typing its input. Cheap enough to be called on every key
+     * stroke.
+     */
+    synchronized void extend(StkCmdMessage cmd) {
+        Integer budget = mBudgets.get(cmd);
+        if (budget != null) {
+            mDeadlines.extend(cmd, budget);
+        }
+    }
+
+    /**
+     * Stops watching a command that was answered.
+     */
+    synchronized void release(StkCmdMessage cmd) {
+        if (cmd != null) {
+            mBudgets.remove(cmd);
+            mDeadlines.cancel(cmd);
+        }
+    }
+
+    int size() {
+        return mDeadlines.size();
+    }
+
+    /**
+     * Counts a shown command the UI didn't answer within its budget.
+     */
+    synchronized void countOverdue(AppInterface.CommandType type) {
+        mOverdue[type.ordinal()]++;
+    }
+
+    /**
+     * Counts a queued command whose budget ran out before it was shown.
+     */
+    synchronized void countExpired(AppInterface.CommandType type) {
+        mExpired[type.ordinal()]++;
+    }
+
+    synchronized int getOverdueCount(AppInterface.CommandType type) {
+        return mOverdue[type.ordinal()];
+    }
+
+    synchronized int getExpiredCount(AppInterface.CommandType type) {
+        return mExpired[type.ordinal()];
+    }
+
+    /**
+     * Prints the watched commands and the per type counters, types without
+     * any are left out.
+     */
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Watchdog: " + size() + " watched");
+        for (int i = 0; i < TYPES.length; i++) {
+            if (mOverdue[i] != 0 || mExpired[i] != 0) {
+                pw.println("  " + TYPES[i].name() + " budget="
+                        + StkApp.getCmdBudget(TYPES[i]) + "ms overdue="
+                        + mOverdue[i] + " expired=" + mExpired[i]);
+            }
+        }
+    }
+}
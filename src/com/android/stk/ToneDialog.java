@@ -19,14 +19,13 @@ package com.android.stk;
 import android.app.Activity;
 import android.content.Intent;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
 import android.os.Vibrator;
 import android.view.KeyEvent;
 import android.view.View;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.android.internal.telephony.gsm.stk.StkCmdMessage;
 import com.android.internal.telephony.gsm.stk.TextMessage;
 import com.android.internal.telephony.gsm.stk.ToneSettings;
 
@@ -38,32 +37,39 @@ public class ToneDialog extends Activity {
     TextMessage toneMsg = null;
     ToneSettings settings = null;
     TonePlayer player = null;
+    // true if the player isn't the service's shared one.
+    boolean mOwnsPlayer = false;
+    // Token of the tone this dialog started on the player.
+    int mTone = TonePlayer.NO_TONE;
+    // Sequence token of the command, returned with the response.
+    long mSeq = StkAppService.SEQ_NONE;
 
     /**
-     * Handler used to stop tones from playing when the duration ends.
+     * Listener used to stop tones from playing when the duration ends. The
+     * service schedules the duration and sends the response.
      */
-    Handler mToneStopper = new Handler() {
-        @Override
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
-            case MSG_ID_STOP_TONE:
-                sendResponse(StkAppService.RES_ID_DONE);
-                finish();
-                break;
-            }
+    private final StkSlotEngine.TimeoutListener mToneStopper =
+            new StkSlotEngine.TimeoutListener() {
+        public void onCmdTimeout() {
+            runOnUiThread(new Runnable() {
+                public void run() {
+                    finish();
+                }
+            });
         }
     };
 
     Vibrator mVibrator = new Vibrator();
 
-    // Message id to signal tone duration timeout.
-    private static final int MSG_ID_STOP_TONE = 0xda;
-
     @Override
     protected void onCreate(Bundle icicle) {
         super.onCreate(icicle);
 
-       initFromIntent(getIntent());
+        initFromIntent(getIntent());
+        if (toneMsg == null || settings == null) {
+            finish();
+            return;
+        }
 
         // remove window title
         View title = findViewById(com.android.internal.R.id.title);
@@ -79,17 +85,27 @@ public class ToneDialog extends Activity {
         if (toneMsg.icon == null) {
             iv.setImageResource(com.android.internal.R.drawable.ic_volume);
         } else {
-            iv.setImageBitmap(toneMsg.icon);
+            iv.setImageBitmap(StkIconCache.getInstance(this).get(toneMsg.icon));
         }
 
+        StkAppService.notifyDisplayed(this);
+
         // Start playing tone and vibration
-        player = new TonePlayer();
-        player.play(settings.tone);
+        StkAppService service = StkAppService.getInstance();
+        if (service != null) {
+            player = service.getTonePlayer();
+        } else {
+            player = new TonePlayer();
+            mOwnsPlayer = true;
+        }
         int timeout = StkApp.calculateDurationInMilis(settings.duration);
         if (timeout == 0) {
             timeout = StkApp.TONE_DFEAULT_TIMEOUT;
         }
-        mToneStopper.sendEmptyMessageDelayed(MSG_ID_STOP_TONE, timeout);
+        StkAppService.setTimeoutListener(mSeq, mToneStopper);
+        mTone = player.play(settings.tone, timeout);
+        // The service schedules the duration from here.
+        StkAppService.notifyToneStarted(mSeq, mTone != TonePlayer.NO_TONE);
         if (settings.vibrate) {
             mVibrator.vibrate(timeout);
         }
@@ -99,9 +115,14 @@ public class ToneDialog extends Activity {
     protected void onDestroy() {
         super.onDestroy();
 
-        mToneStopper.removeMessages(MSG_ID_STOP_TONE);
-        player.stop();
-        player.release();
+        StkAppService.clearTimeoutListener(mSeq, mToneStopper);
+        if (player != null) {
+            // Only stops the tone if the next PLAY TONE didn't start one.
+            player.stop(mTone);
+            if (mOwnsPlayer) {
+                player.release();
+            }
+        }
         mVibrator.cancel();
     }
 
@@ -119,15 +140,20 @@ public class ToneDialog extends Activity {
     private void initFromIntent(Intent intent) {
         if (intent == null) {
             finish();
+            return;
+        }
+        StkCmdMessage cmd = (StkCmdMessage) StkAppService.getPayload(
+                intent.getLongExtra(StkAppService.PAYLOAD, 0));
+        if (cmd != null) {
+            toneMsg = cmd.geTextMessage();
+            settings = cmd.getToneSettings();
         }
-        toneMsg = intent.getParcelableExtra("TEXT");
-        settings = intent.getParcelableExtra("TONE");
+        mSeq = intent.getLongExtra(StkAppService.SEQ, StkAppService.SEQ_NONE);
     }
 
     private void sendResponse(int resId) {
-        Bundle args = new Bundle();
-        args.putInt(StkAppService.OPCODE, StkAppService.OP_RESPONSE);
-        args.putInt(StkAppService.RES_ID, resId);
-        startService(new Intent(this, StkAppService.class).putExtras(args));
+        StkUserResponse response = new StkUserResponse(resId);
+        response.seq = mSeq;
+        StkAppService.sendResponse(this, response);
     }
 }
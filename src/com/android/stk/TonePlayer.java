@@ -16,63 +16,187 @@
 
 package com.android.stk;
 
-import java.util.HashMap;
-
 import android.media.AudioManager;
 import android.media.ToneGenerator;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.android.internal.telephony.gsm.stk.StkLog;
 import com.android.internal.telephony.gsm.stk.Tone;
 
+import java.nio.ByteBuffer;
+
 /**
  * Class that implements a tones player for the SIM toolkit application.
  *
+ * The underlying ToneGenerator is created on first use and kept warm between
+ * tones, it is released once the player has been idle for
+ * StkApp.getToneIdleRelease() ms. Must be used from the main thread.
+ *
+ * When StkApp.isPcmToneBackend() is set, tones are instead synthesized by
+ * StkToneSynth, once per tone, and streamed for exactly the requested
+ * duration by a StkToneStreamer.
  */
 public class TonePlayer {
-    private static final HashMap<Tone, Integer> mToneMap = new HashMap<Tone, Integer>();
+    // Token returned when no tone was started.
+    static final int NO_TONE = 0;
+
+    // System tone ids, indexed by STK tone ordinal.
+    private static final int[] TONE_IDS = new int[Tone.values().length];
 
     static {
+        // Unmapped STK tones play a beep.
+        for (int i = 0; i < TONE_IDS.length; i++) {
+            TONE_IDS[i] = ToneGenerator.TONE_PROP_BEEP;
+        }
         // Map STK tone ids to the system tone ids.
-        mToneMap.put(Tone.DIAL, ToneGenerator.TONE_SUP_DIAL);
-        mToneMap.put(Tone.BUSY, ToneGenerator.TONE_SUP_BUSY);
-        mToneMap.put(Tone.CONGESTION, ToneGenerator.TONE_SUP_CONGESTION);
-        mToneMap.put(Tone.RADIO_PATH_ACK, ToneGenerator.TONE_SUP_RADIO_ACK);
-        mToneMap.put(Tone.RADIO_PATH_NOT_AVAILABLE, ToneGenerator.TONE_SUP_RADIO_NOTAVAIL);
-        mToneMap.put(Tone.ERROR_SPECIAL_INFO, ToneGenerator.TONE_SUP_ERROR);
-        mToneMap.put(Tone.CALL_WAITING, ToneGenerator.TONE_SUP_CALL_WAITING);
-        mToneMap.put(Tone.RINGING, ToneGenerator.TONE_SUP_RINGTONE);
-        mToneMap.put(Tone.GENERAL_BEEP, ToneGenerator.TONE_PROP_BEEP);
-        mToneMap.put(Tone.POSITIVE_ACK, ToneGenerator.TONE_PROP_ACK);
-        mToneMap.put(Tone.NEGATIVE_ACK, ToneGenerator.TONE_PROP_NACK);
+        TONE_IDS[Tone.DIAL.ordinal()] = ToneGenerator.TONE_SUP_DIAL;
+        TONE_IDS[Tone.BUSY.ordinal()] = ToneGenerator.TONE_SUP_BUSY;
+        TONE_IDS[Tone.CONGESTION.ordinal()] = ToneGenerator.TONE_SUP_CONGESTION;
+        TONE_IDS[Tone.RADIO_PATH_ACK.ordinal()] = ToneGenerator.TONE_SUP_RADIO_ACK;
+        TONE_IDS[Tone.RADIO_PATH_NOT_AVAILABLE.ordinal()] = ToneGenerator.TONE_SUP_RADIO_NOTAVAIL;
+        TONE_IDS[Tone.ERROR_SPECIAL_INFO.ordinal()] = ToneGenerator.TONE_SUP_ERROR;
+        TONE_IDS[Tone.CALL_WAITING.ordinal()] = ToneGenerator.TONE_SUP_CALL_WAITING;
+        TONE_IDS[Tone.RINGING.ordinal()] = ToneGenerator.TONE_SUP_RINGTONE;
+        TONE_IDS[Tone.GENERAL_BEEP.ordinal()] = ToneGenerator.TONE_PROP_BEEP;
+        TONE_IDS[Tone.POSITIVE_ACK.ordinal()] = ToneGenerator.TONE_PROP_ACK;
+        TONE_IDS[Tone.NEGATIVE_ACK.ordinal()] = ToneGenerator.TONE_PROP_NACK;
+    }
+
+    // Synthesized tone patterns, indexed by STK tone ordinal.
+    private static final StkToneSynth.Pattern[] PATTERNS =
+            new StkToneSynth.Pattern[Tone.values().length];
+
+    static {
+        for (int i = 0; i < PATTERNS.length; i++) {
+            PATTERNS[i] = StkToneSynth.BEEP;
+        }
+        PATTERNS[Tone.DIAL.ordinal()] = StkToneSynth.DIAL;
+        PATTERNS[Tone.BUSY.ordinal()] = StkToneSynth.BUSY;
+        PATTERNS[Tone.CONGESTION.ordinal()] = StkToneSynth.CONGESTION;
+        PATTERNS[Tone.RADIO_PATH_ACK.ordinal()] = StkToneSynth.RADIO_ACK;
+        PATTERNS[Tone.RADIO_PATH_NOT_AVAILABLE.ordinal()] = StkToneSynth.RADIO_NOTAVAIL;
+        PATTERNS[Tone.ERROR_SPECIAL_INFO.ordinal()] = StkToneSynth.ERROR;
+        PATTERNS[Tone.CALL_WAITING.ordinal()] = StkToneSynth.CALL_WAITING;
+        PATTERNS[Tone.RINGING.ordinal()] = StkToneSynth.RINGTONE;
+        PATTERNS[Tone.GENERAL_BEEP.ordinal()] = StkToneSynth.BEEP;
+        PATTERNS[Tone.POSITIVE_ACK.ordinal()] = StkToneSynth.ACK;
+        PATTERNS[Tone.NEGATIVE_ACK.ordinal()] = StkToneSynth.NACK;
     }
 
+    // Rendered tone periods, shared by all players, indexed like PATTERNS.
+    private static final ByteBuffer[] sPcm = new ByteBuffer[PATTERNS.length];
+
+    private final boolean mPcmBackend = StkApp.isPcmToneBackend();
+    private StkToneStreamer mStreamer = null;
     private ToneGenerator mToneGenerator = null;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Token of the tone playing, or last played, and of the next one.
+    private int mCurrentTone = NO_TONE;
+    private int mNextTone = NO_TONE + 1;
+
+    private final Runnable mIdleRelease = new Runnable() {
+        public void run() {
+            release();
+        }
+    };
 
     TonePlayer() {
-        mToneGenerator = new ToneGenerator(AudioManager.STREAM_SYSTEM, 100);
     }
 
-    public void play(Tone tone) {
+    /**
+     * Starts playing a tone for the default tone duration, or until stop()
+     * is called.
+     *
+     * @return the token of the tone, NO_TONE if it didn't start.
+     */
+    public int play(Tone tone) {
+        return play(tone, StkApp.TONE_DFEAULT_TIMEOUT);
+    }
+
+    /**
+     * Starts playing a tone, replacing the current one. The PCM backend ends
+     * the tone after duration ms, ToneGenerator plays it until stop() is
+     * called.
+     *
+     * @return the token to stop the tone with, NO_TONE if it didn't start.
+     */
+    public int play(Tone tone, long duration) {
+        mHandler.removeCallbacks(mIdleRelease);
+        mCurrentTone = NO_TONE;
+        if (!start(tone, duration)) {
+            return NO_TONE;
+        }
+        mCurrentTone = mNextTone++;
+        return mCurrentTone;
+    }
+
+    private boolean start(Tone tone, long duration) {
+        if (mPcmBackend) {
+            int index = (tone != null) ? tone.ordinal() : Tone.GENERAL_BEEP.ordinal();
+            StkToneSynth.Pattern pattern = PATTERNS[index];
+            if (mStreamer == null) {
+                mStreamer = new StkToneStreamer();
+            }
+            mStreamer.play(getPcm(index), pattern.repeat, duration);
+            return true;
+        }
         int toneId = getToneId(tone);
-        if (toneId > 0 && mToneGenerator != null) {
-            mToneGenerator.startTone(toneId);
+        if (mToneGenerator == null) {
+            try {
+                mToneGenerator = new ToneGenerator(AudioManager.STREAM_SYSTEM, 100);
+            } catch (RuntimeException e) {
+                StkLog.d(this, "Unable to create ToneGenerator: " + e);
+                return false;
+            }
         }
+        return toneId > 0 && mToneGenerator.startTone(toneId);
     }
 
-    public void stop() {
+    /**
+     * Stops the tone of the given token. Nothing happens if another tone
+     * started since, the player is shared by consecutive PLAY TONE dialogs.
+     * The generator stays warm for the next tone.
+     */
+    public void stop(int token) {
+        if (token == NO_TONE || token != mCurrentTone) {
+            return;
+        }
+        mCurrentTone = NO_TONE;
+        if (mStreamer != null) {
+            mStreamer.stop();
+        }
         if (mToneGenerator != null) {
             mToneGenerator.stopTone();
         }
+        if (mStreamer != null || mToneGenerator != null) {
+            mHandler.removeCallbacks(mIdleRelease);
+            mHandler.postDelayed(mIdleRelease, StkApp.getToneIdleRelease());
+        }
     }
 
     public void release() {
-        mToneGenerator.release();
+        mHandler.removeCallbacks(mIdleRelease);
+        if (mStreamer != null) {
+            mStreamer.quit();
+            mStreamer = null;
+        }
+        if (mToneGenerator != null) {
+            mToneGenerator.release();
+            mToneGenerator = null;
+        }
     }
 
-    private int getToneId(Tone tone) {
-        int toneId = ToneGenerator.TONE_PROP_BEEP;
-
-        if (tone != null && mToneMap.containsKey(tone)) {
-            toneId = mToneMap.get(tone);
+    private static ByteBuffer getPcm(int index) {
+        if (sPcm[index] == null) {
+            sPcm[index] = StkToneSynth.render(PATTERNS[index],
+                    StkToneSynth.SAMPLE_RATE);
         }
-        return toneId;
+        return sPcm[index];
+    }
+
+    private int getToneId(Tone tone) {
+        return (tone != null) ? TONE_IDS[tone.ordinal()]
+                : ToneGenerator.TONE_PROP_BEEP;
     }
 }
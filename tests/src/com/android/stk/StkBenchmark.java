@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.stk;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Minimal host JVM benchmark harness, for the plain Java parts of the
+ * command path. A benchmark runs its operation in batches: the batch size
+ * is grown until a batch takes BATCH_NS, WARMUP batches let the JIT compile
+ * the code, and the median of BATCHES measured batches is reported in ns per
+ * operation.
+ */
+abstract class StkBenchmark {
+    private static final long BATCH_NS = 20 * 1000 * 1000;
+    private static final int WARMUP = 10;
+    private static final int BATCHES = 15;
+
+    // Results are folded into the sink so the JIT can't drop the work.
+    static volatile long sSink;
+
+    final String name;
+
+    StkBenchmark(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Runs the operation n times and returns a value depending on all the
+     * results.
+     */
+    abstract long run(int n);
+
+    /**
+     * Returns the median time of one operation, in ns.
+     */
+    final double measure() {
+        int n = 1;
+        while (time(n) < BATCH_NS && n < (1 << 30)) {
+            n *= 2;
+        }
+        for (int i = 0; i < WARMUP; i++) {
+            time(n);
+        }
+        long[] batches = new long[BATCHES];
+        for (int i = 0; i < BATCHES; i++) {
+            batches[i] = time(n);
+        }
+        Arrays.sort(batches);
+        return (double) batches[BATCHES / 2] / n;
+    }
+
+    private long time(int n) {
+        long start = System.nanoTime();
+        sSink += run(n);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Measures the benchmarks and prints one line per benchmark.
+     */
+    static void report(StkBenchmark... benchmarks) {
+        for (StkBenchmark b : benchmarks) {
+            System.out.println(String.format(Locale.US, "%-40s %10.1f ns/op", b.name,
+                    b.measure()));
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.stk;
+
+import com.android.internal.telephony.gsm.stk.AppInterface;
+import com.android.internal.telephony.gsm.stk.Item;
+import com.android.internal.telephony.gsm.stk.Menu;
+import com.android.internal.telephony.gsm.stk.ResultCode;
+import com.android.internal.telephony.gsm.stk.StkCmdMessage;
+import com.android.internal.telephony.gsm.stk.TextMessage;
+
+/**
+ * Host JVM benchmarks of the command path helpers of StkAppService: result
+ * code mapping, session state machine, command queue and menu item lookups.
+ * Android and telephony types are replaced by the stand-ins under
+ * tests/standins. Run from the project root with:
+ *
+ *   javac -d /tmp/stk $(find tests/standins -name '*.java') \
+ *       src/com/android/stk/StkCommands.java \
+ *       src/com/android/stk/StkSession.java \
+ *       src/com/android/stk/StkCmdQueue.java \
+ *       src/com/android/stk/StkMenuIndex.java \
+ *       tests/src/com/android/stk/StkBenchmark.java \
+ *       tests/src/com/android/stk/StkCommandPathBenchmark.java
+ *   java -cp /tmp/stk com.android.stk.StkCommandPathBenchmark
+ */
+final class StkCommandPathBenchmark {
+    private static final int MENU_ITEMS = 255;
+    // Default of stk.cmd_queue_capacity.
+    private static final int QUEUE_CAPACITY = 16;
+
+    public static void main(String[] args) {
+        StkBenchmark.report(
+                resultCodeFor(),
+                sessionCycle(),
+                queueOfferPoll(),
+                menuIndexBuild(),
+                menuIndexLookup(),
+                menuLinearLookup());
+    }
+
+    // Every response id against every command type, as answered by
+    // handleCmdResponse().
+    private static StkBenchmark resultCodeFor() {
+        final AppInterface.CommandType[] types = AppInterface.CommandType.values();
+        final int[] resIds = {
+            StkCommands.RES_ID_MENU_SELECTION, StkCommands.RES_ID_INPUT,
+            StkCommands.RES_ID_CONFIRM, StkCommands.RES_ID_DONE,
+            StkCommands.RES_ID_TIMEOUT, StkCommands.RES_ID_BACKWARD,
+            StkCommands.RES_ID_END_SESSION,
+        };
+        return new StkBenchmark("StkCommands.resultCodeFor") {
+            long run(int n) {
+                long sum = 0;
+                for (int i = 0; i < n; i++) {
+                    ResultCode code = StkCommands.resultCodeFor(
+                            types[i % types.length], resIds[i % resIds.length],
+                            (i & 1) != 0, (i & 2) != 0, (i & 4) != 0,
+                            (i & 8) != 0);
+                    sum += (code != null) ? code.ordinal() : -1;
+                }
+                return sum;
+            }
+        };
+    }
+
+    // One interactive command with a queued one behind it: shown, queued,
+    // answered, dispatched, answered. Ten transitions, back to IDLE.
+    private static StkBenchmark sessionCycle() {
+        final StkSession.Event[] cycle = {
+            StkSession.Event.INTERACTIVE,
+            StkSession.Event.INFORMATIVE,
+            StkSession.Event.INTERACTIVE,
+            StkSession.Event.RESPONSE,
+            StkSession.Event.DONE_CMD,
+            StkSession.Event.DISPATCH_CMD,
+            StkSession.Event.RESPONSE,
+            StkSession.Event.DONE_EMPTY,
+            StkSession.Event.SESSION_END,
+            StkSession.Event.DONE_EMPTY,
+        };
+        final StkSession session = new StkSession();
+        return new StkBenchmark("StkSession.fire (x" + cycle.length + ")") {
+            long run(int n) {
+                long sum = 0;
+                for (int i = 0; i < n; i++) {
+                    for (StkSession.Event event : cycle) {
+                        sum += session.fire(event).ordinal();
+                    }
+                }
+                if (session.getState() != StkSession.State.IDLE) {
+                    throw new AssertionError("cycle ends in " + session.getState());
+                }
+                return sum;
+            }
+        };
+    }
+
+    // Fills the queue with normal and high priority commands and a session
+    // end, then drains it, most urgent first.
+    private static StkBenchmark queueOfferPoll() {
+        final int capacity = QUEUE_CAPACITY;
+        final StkCmdQueue queue = new StkCmdQueue(capacity);
+        TextMessage urgent = new TextMessage();
+        urgent.isHighPriority = true;
+        final StkCmdMessage normal = new StkCmdMessage(
+                AppInterface.CommandType.GET_INPUT, null, null);
+        final StkCmdMessage high = new StkCmdMessage(
+                AppInterface.CommandType.DISPLAY_TEXT, urgent, null);
+        return new StkBenchmark("StkCmdQueue.offer+poll (x" + (capacity + 1) + ")") {
+            long run(int n) {
+                long sum = 0;
+                for (int i = 0; i < n; i++) {
+                    for (int j = 0; j < capacity; j++) {
+                        queue.offer(1, (j % 3 == 0) ? high : normal);
+                    }
+                    queue.offer(4, null);
+                    StkCmdQueue.Entry entry;
+                    while ((entry = queue.poll()) != null) {
+                        sum += entry.priority;
+                    }
+                }
+                return sum;
+            }
+        };
+    }
+
+    private static StkBenchmark menuIndexBuild() {
+        final Menu menu = menu(MENU_ITEMS);
+        return new StkBenchmark("new StkMenuIndex (" + MENU_ITEMS + " items)") {
+            long run(int n) {
+                long sum = 0;
+                for (int i = 0; i < n; i++) {
+                    sum += new StkMenuIndex(menu).size();
+                }
+                return sum;
+            }
+        };
+    }
+
+    // Item text of a selection, as logged and shown for a menu selection.
+    private static StkBenchmark menuIndexLookup() {
+        final StkMenuIndex index = new StkMenuIndex(menu(MENU_ITEMS));
+        return new StkBenchmark("StkMenuIndex.getItemText") {
+            long run(int n) {
+                long sum = 0;
+                for (int i = 0; i < n; i++) {
+                    String text = index.getItemText((i * 7) & 0xff);
+                    sum += (text != null) ? text.length() : 0;
+                }
+                return sum;
+            }
+        };
+    }
+
+    // The linear scan StkMenuIndex replaced, for reference.
+    private static StkBenchmark menuLinearLookup() {
+        final Menu menu = menu(MENU_ITEMS);
+        return new StkBenchmark("linear item scan (reference)") {
+            long run(int n) {
+                long sum = 0;
+                for (int i = 0; i < n; i++) {
+                    int id = (i * 7) & 0xff;
+                    for (Item item : menu.items) {
+                        if (item.id == id) {
+                            sum += item.text.length();
+                            break;
+                        }
+                    }
+                }
+                return sum;
+            }
+        };
+    }
+
+    // Items with ids 1..count, as SET UP MENU numbers them.
+    private static Menu menu(int count) {
+        Menu menu = new Menu();
+        menu.title = "Toolkit";
+        for (int id = 1; id <= count; id++) {
+            menu.items.add(new Item(id, "Item " + id));
+        }
+        return menu;
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.stk;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.android.internal.telephony.gsm.stk.AppInterface;
+import com.android.internal.telephony.gsm.stk.Input;
+import com.android.internal.telephony.gsm.stk.Item;
+import com.android.internal.telephony.gsm.stk.Menu;
+import com.android.internal.telephony.gsm.stk.ResultCode;
+import com.android.internal.telephony.gsm.stk.StkCmdMessage;
+import com.android.internal.telephony.gsm.stk.StkCmdMessage.BrowserSettings;
+import com.android.internal.telephony.gsm.stk.StkResponseMessage;
+import com.android.internal.telephony.gsm.stk.TextMessage;
+
+import java.util.ArrayList;
+
+/**
+ * Host JVM check of two StkSlotEngines sharing the service thread, each
+ * answering its own fake AppInterface: a command waiting for the user on one
+ * slot doesn't hold up the other, responses and timeouts reach the toolkit
+ * of the slot they belong to, and a session end only ends its own slot's
+ * session. Responses are routed by the slot of their token, as
+ * StkAppService does. The stand-in Handler runs the service thread's
+ * messages on the virtual SystemClock. Run from the project root with:
+ *
+ *   javac -d /tmp/stk $(find tests/standins -name '*.java') \
+ *       src/com/android/stk/StkApp.java \
+ *       src/com/android/stk/StkCmdQueue.java \
+ *       src/com/android/stk/StkCommands.java \
+ *       src/com/android/stk/StkLatencyTracker.java \
+ *       src/com/android/stk/StkMenuIndex.java \
+ *       src/com/android/stk/StkMetrics.java \
+ *       src/com/android/stk/StkSession.java \
+ *       src/com/android/stk/StkSlotEngine.java \
+ *       src/com/android/stk/StkTimeoutScheduler.java \
+ *       src/com/android/stk/StkTrace.java \
+ *       src/com/android/stk/StkUserResponse.java \
+ *       src/com/android/stk/StkWatchdog.java \
+ *       tests/src/com/android/stk/StkSlotEngineCheck.java
+ *   java -cp /tmp/stk com.android.stk.StkSlotEngineCheck
+ */
+final class StkSlotEngineCheck {
+    // StkApp.UI_TIMEOUT, no property is set on the host.
+    private static final long UI_TIMEOUT = 40 * 1000;
+
+    /**
+     * Toolkit of one SIM, keeps the terminal responses it was sent.
+     */
+    private static final class FakeToolkit implements AppInterface {
+        final ArrayList<StkResponseMessage> responses =
+                new ArrayList<StkResponseMessage>();
+
+        public void onCmdResponse(StkResponseMessage resMsg) {
+            responses.add(resMsg);
+        }
+
+        StkResponseMessage last() {
+            return responses.get(responses.size() - 1);
+        }
+    }
+
+    /**
+     * Records what the engines asked the UI to show, as "<slot> <what>".
+     */
+    private static final class RecordingHost implements StkSlotEngine.Host {
+        final ArrayList<String> shown = new ArrayList<String>();
+        int menuChanges = 0;
+
+        public void launchMenu(StkSlotEngine engine, Menu menu) {
+            shown.add(engine.getSlot() + ((menu == null) ? " main menu" : " menu"));
+        }
+
+        public void launchInput(StkSlotEngine engine, Input input) {
+            shown.add(engine.getSlot() + " input");
+        }
+
+        public void launchTextDialog(StkSlotEngine engine, TextMessage msg) {
+            shown.add(engine.getSlot() + " text " + msg.text);
+        }
+
+        public void launchConfirmationDialog(StkSlotEngine engine,
+                TextMessage msg) {
+            shown.add(engine.getSlot() + " confirmation");
+        }
+
+        public void launchToneDialog(StkSlotEngine engine, StkCmdMessage cmd) {
+            shown.add(engine.getSlot() + " tone");
+        }
+
+        public void launchBrowser(BrowserSettings settings) {
+            shown.add("browser");
+        }
+
+        public void showCallMessage(TextMessage msg) {
+        }
+
+        public void showIdleText(TextMessage msg) {
+        }
+
+        public void showEventMessage(TextMessage msg) {
+        }
+
+        public void onMainMenuChanged(StkSlotEngine engine) {
+            menuChanges++;
+        }
+
+        public void saveMainMenu(StkSlotEngine engine, Menu menu) {
+        }
+
+        String last() {
+            return shown.isEmpty() ? null : shown.get(shown.size() - 1);
+        }
+    }
+
+    /**
+     * Timeout listener of a UI element, counts the timeouts it was told of.
+     */
+    private static final class CountingListener
+            implements StkSlotEngine.TimeoutListener {
+        int timeouts = 0;
+
+        public void onCmdTimeout() {
+            timeouts++;
+        }
+    }
+
+    private static final Handler sHandler = new Handler();
+    private static final RecordingHost sHost = new RecordingHost();
+    private static final StkMetrics sMetrics = new StkMetrics();
+    private static final FakeToolkit[] sToolkits = {
+        new FakeToolkit(), new FakeToolkit(),
+    };
+    private static final StkSlotEngine[] sEngines = new StkSlotEngine[2];
+
+    public static void main(String[] args) {
+        StkTrace trace = new StkTrace();
+        StkLatencyTracker latency = new StkLatencyTracker();
+        for (int slot = 0; slot < sEngines.length; slot++) {
+            sEngines[slot] = new StkSlotEngine(slot, sToolkits[slot], sHandler,
+                    sHost, trace, latency, sMetrics, 0);
+        }
+        StkSlotEngine sim0 = sEngines[0];
+        StkSlotEngine sim1 = sEngines[1];
+
+        check(StkSlotEngine.slotOf(StkSlotEngine.SEQ_NONE)
+                == StkSlotEngine.DEFAULT_SLOT, "SEQ_NONE slot");
+
+        // Each slot has its own main menu.
+        sim0.onCmd(menuCmd(AppInterface.CommandType.SET_UP_MENU, "Bank"));
+        sim1.onCmd(menuCmd(AppInterface.CommandType.SET_UP_MENU, "Operator"));
+        run();
+        check(sHost.menuChanges == 2, "main menu changes " + sHost.menuChanges);
+        check(sim0.hasMainMenu() && sim1.hasMainMenu(), "main menus");
+        check(sim0.getMenu().title.equals("Bank"), "slot 0 menu");
+        check(sim1.getMenu().title.equals("Operator"), "slot 1 menu");
+        check(StkSlotEngine.slotOf(sim0.getMainMenuSeq()) == 0, "slot 0 menu seq");
+        check(StkSlotEngine.slotOf(sim1.getMainMenuSeq()) == 1, "slot 1 menu seq");
+
+        // Slot 0 waits for the user to type.
+        sim0.onCmd(new StkCmdMessage(AppInterface.CommandType.GET_INPUT, null,
+                null, new Input(), null));
+        run();
+        check("0 input".equals(sHost.last()), "slot 0 shows input");
+        long inputSeq = sim0.getCurrentSeq();
+        check(StkSlotEngine.slotOf(inputSeq) == 0, "slot 0 input seq");
+        CountingListener inputListener = new CountingListener();
+        sim0.setTimeoutListener(inputListener);
+
+        // Slot 1 isn't held up by it.
+        sim1.onCmd(menuCmd(AppInterface.CommandType.SELECT_ITEM, "Services"));
+        run();
+        check("1 menu".equals(sHost.last()), "slot 1 shows select item");
+        check(sim1.getCmdQueue().size() == 0, "slot 1 select item not queued");
+        long selectSeq = sim1.getCurrentSeq();
+        check(StkSlotEngine.slotOf(selectSeq) == 1, "slot 1 select item seq");
+        check(sim1.getMenu().title.equals("Services"), "slot 1 menu is shown");
+        check(sim0.getMenu().title.equals("Bank"), "slot 0 menu unchanged");
+
+        // But slot 0's next interactive command waits for its input.
+        sim0.onCmd(textCmd("queued"));
+        run();
+        check(sim0.getCmdQueue().size() == 1, "slot 0 text queued");
+        check(sim1.getCmdQueue().size() == 0, "slot 1 queue empty");
+
+        // The selection goes to slot 1's toolkit only.
+        StkUserResponse selection =
+                new StkUserResponse(StkCommands.RES_ID_MENU_SELECTION);
+        selection.menuSelection = 2;
+        selection.seq = selectSeq;
+        route(selection);
+        check(sToolkits[1].responses.size() == 1, "slot 1 answered");
+        check(sToolkits[1].last().menuSelection == 2, "slot 1 selection");
+        check(sToolkits[1].last().resCode == ResultCode.OK, "slot 1 result");
+        check(sToolkits[0].responses.isEmpty(), "slot 0 not answered");
+
+        // Slot 1 keeps going: its DISPLAY TEXT is shown right away.
+        sim1.onCmd(textCmd("balance"));
+        run();
+        check("1 text balance".equals(sHost.last()), "slot 1 shows text");
+        StkUserResponse confirm = new StkUserResponse(StkCommands.RES_ID_CONFIRM);
+        confirm.confirmed = true;
+        confirm.seq = sim1.getCurrentSeq();
+        route(confirm);
+        check(sToolkits[1].responses.size() == 2, "slot 1 text answered");
+
+        // Slot 1's session end leaves slot 0's session alone.
+        sim1.onSessionEnd();
+        run();
+        check(sim0.getSession().getState() == StkSession.State.WAIT_RESPONSE,
+                "slot 0 still waiting");
+        check(sim0.getCmdQueue().size() == 1, "slot 0 queue kept");
+        check(sim1.getMenu().title.equals("Operator"), "slot 1 back at main menu");
+
+        // The input goes to slot 0's toolkit, then its queued text shows.
+        StkUserResponse input = new StkUserResponse(StkCommands.RES_ID_INPUT);
+        input.input = "42";
+        input.seq = inputSeq;
+        route(input);
+        check(sToolkits[0].responses.size() == 1, "slot 0 answered");
+        check("42".equals(sToolkits[0].last().input), "slot 0 input");
+        check(sToolkits[1].responses.size() == 2, "slot 1 untouched");
+        run();
+        check("0 text queued".equals(sHost.last()), "slot 0 shows queued text");
+        check(sim0.getCmdQueue().size() == 0, "slot 0 queue drained");
+
+        // A second tap on the input is a duplicate of slot 0 only.
+        route(input);
+        check(sim0.getDuplicateResponses() == 1, "slot 0 duplicate");
+        check(sim1.getDuplicateResponses() == 0, "slot 1 no duplicate");
+        check(sToolkits[0].responses.size() == 1, "duplicate not answered");
+
+        // Slot 0's text times out, on slot 0 only.
+        CountingListener textListener = new CountingListener();
+        CountingListener otherListener = new CountingListener();
+        sim0.setTimeoutListener(textListener);
+        sim1.setTimeoutListener(otherListener);
+        SystemClock.sleep(UI_TIMEOUT);
+        run();
+        check(sToolkits[0].responses.size() == 2, "slot 0 text timed out");
+        check(sToolkits[0].last().resCode == ResultCode.NO_RESPONSE_FROM_USER,
+                "slot 0 timeout result " + sToolkits[0].last().resCode);
+        check(textListener.timeouts == 1, "slot 0 listener told");
+        check(otherListener.timeouts == 0, "slot 1 listener not told");
+        check(inputListener.timeouts == 0, "answered input not timed out");
+        check(sToolkits[1].responses.size() == 2, "slot 1 toolkit untouched");
+
+        // Both slots count into the shared metrics.
+        check(sMetrics.counter("result.ok").get() == 3, "ok results "
+                + sMetrics.counter("result.ok").get());
+
+        System.out.println("StkSlotEngineCheck OK");
+    }
+
+    // Hands a response to the engine of its token's slot, as StkAppService
+    // does, and runs what it posted.
+    private static void route(StkUserResponse response) {
+        sEngines[StkSlotEngine.slotOf(response.seq)].onResponse(response);
+        run();
+    }
+
+    private static void run() {
+        sHandler.runDue();
+    }
+
+    private static StkCmdMessage menuCmd(AppInterface.CommandType type,
+            String title) {
+        Menu menu = new Menu();
+        menu.title = title;
+        menu.items.add(new Item(1, "First"));
+        menu.items.add(new Item(2, "Second"));
+        return new StkCmdMessage(type, null, menu);
+    }
+
+    private static StkCmdMessage textCmd(String text) {
+        TextMessage msg = new TextMessage();
+        msg.text = text;
+        msg.userClear = true;
+        return new StkCmdMessage(AppInterface.CommandType.DISPLAY_TEXT, msg,
+                null);
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
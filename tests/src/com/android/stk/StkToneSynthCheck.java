@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.stk;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Plain JVM check of the samples rendered by StkToneSynth, which depends on
+ * the java.* classes only. Run from the project root with:
+ *
+ *   javac -d /tmp/stk src/com/android/stk/StkToneSynth.java \
+ *       tests/src/com/android/stk/StkToneSynthCheck.java
+ *   java -cp /tmp/stk com.android.stk.StkToneSynthCheck
+ */
+final class StkToneSynthCheck {
+    private static final int RATE = StkToneSynth.SAMPLE_RATE;
+
+    public static void main(String[] args) {
+        check(StkToneSynth.frames(1000, RATE) == RATE, "frames of 1 s");
+        check(StkToneSynth.frames(0, RATE) == 0, "frames of 0 ms");
+
+        // 1 s of 425 Hz, within full scale and crossing zero twice per
+        // cycle.
+        ByteBuffer dial = StkToneSynth.render(StkToneSynth.DIAL, RATE);
+        check(dial.limit() / 2 == RATE, "dial period length");
+        short[] samples = read(dial, true, 0, RATE);
+        int peak = 0;
+        int crossings = 0;
+        for (int i = 0; i < samples.length; i++) {
+            peak = Math.max(peak, Math.abs(samples[i]));
+            if (i > 0 && (samples[i - 1] < 0) != (samples[i] < 0)) {
+                crossings++;
+            }
+        }
+        check(peak > 16000 && peak <= 16383, "dial peak " + peak);
+        check(Math.abs(crossings - 2 * 425) <= 2, "dial crossings " + crossings);
+
+        // Dial tone is continuous: no dip where the period loops, every
+        // cycle around the loop boundary reaches full level, and no sample
+        // steps further than a 425 Hz sine at full scale can.
+        short[] seam = read(dial, true, RATE - RATE / 10, RATE / 5);
+        int cycle = RATE / 425 + 1;
+        for (int i = 0; i + cycle <= seam.length; i++) {
+            int level = 0;
+            for (int j = i; j < i + cycle; j++) {
+                level = Math.max(level, Math.abs(seam[j]));
+            }
+            check(level > 16000, "dial level " + level + " at loop boundary "
+                    + (i - RATE / 10));
+        }
+        double maxStep = 2 * Math.PI * 425 / RATE * 16383 + 1;
+        for (int i = 1; i < seam.length; i++) {
+            check(Math.abs(seam[i] - seam[i - 1]) <= maxStep,
+                    "dial step at loop boundary " + (i - RATE / 10));
+        }
+
+        // 500 ms on, 500 ms off, looped.
+        ByteBuffer busy = StkToneSynth.render(StkToneSynth.BUSY, RATE);
+        short[] stream = read(busy, true, 0, 2 * RATE);
+        for (int i = RATE / 2; i < RATE; i++) {
+            check(stream[i] == 0, "busy silent at " + i);
+        }
+        for (int i = 0; i < RATE; i++) {
+            check(stream[i] == stream[i + RATE], "busy loops at " + i);
+        }
+
+        // Non repeating patterns are followed by silence.
+        ByteBuffer ack = StkToneSynth.render(StkToneSynth.RADIO_ACK, RATE);
+        int length = ack.limit() / 2;
+        short[] tail = read(ack, false, length, RATE);
+        for (int i = 0; i < tail.length; i++) {
+            check(tail[i] == 0, "radio ack silent after the period at " + i);
+        }
+
+        System.out.println("StkToneSynth samples OK");
+    }
+
+    private static short[] read(ByteBuffer period, boolean repeat, long position,
+            int count) {
+        short[] dst = new short[count];
+        check(StkToneSynth.fill(period, repeat, position, dst, count) == count,
+                "fill count");
+        return dst;
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
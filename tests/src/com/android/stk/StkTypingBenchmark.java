@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.stk;
+
+import android.os.Handler;
+import android.os.Message;
+import android.os.SystemClock;
+
+import java.util.Locale;
+
+/**
+ * Host JVM benchmark of the GET INPUT timeout while the user types:
+ * handler operations per typed character, and time per character, of the
+ * message re-posted on every character as StkInputActivity used to do,
+ * against StkTimeoutScheduler.extend(). The stand-in Handler counts the
+ * operations and runs messages on the virtual SystemClock. Its queue is a
+ * plain list, so the times leave out the MessageQueue lock and looper
+ * wake-up of the platform, which the operation counts stand for. Run from
+ * the project root with:
+ *
+ *   javac -d /tmp/stk $(find tests/standins -name '*.java') \
+ *       src/com/android/stk/StkCommands.java \
+ *       src/com/android/stk/StkTimeoutScheduler.java \
+ *       tests/src/com/android/stk/StkBenchmark.java \
+ *       tests/src/com/android/stk/StkTypingBenchmark.java
+ *   java -cp /tmp/stk com.android.stk.StkTypingBenchmark
+ */
+final class StkTypingBenchmark {
+    // StkApp.UI_TIMEOUT, the default of a GET INPUT.
+    private static final long TIMEOUT = 40 * 1000;
+    private static final int CHARACTERS = 160;
+    // Time between two characters.
+    private static final long TYPING_INTERVAL = 250;
+    // Clock step while waiting for the timeout.
+    private static final long STEP = 10;
+
+    /**
+     * Timeout of the input, as a typing session drives it.
+     */
+    private interface InputTimeout {
+        void start();
+        void onTextChanged();
+        Handler getHandler();
+        // uptimeMillis() the timeout fired at, -1 while it did not.
+        long firedAt();
+    }
+
+    /**
+     * startTimeOut() of StkInputActivity before the scheduler, called on
+     * every character.
+     */
+    private static final class RepostingTimeout implements InputTimeout {
+        private static final int MSG_ID_TIMEOUT = 1;
+        private long mFiredAt = -1;
+
+        private final Handler mHandler = new Handler() {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_ID_TIMEOUT) {
+                    mFiredAt = SystemClock.uptimeMillis();
+                }
+            }
+        };
+
+        public void start() {
+            mHandler.removeMessages(MSG_ID_TIMEOUT);
+            mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_ID_TIMEOUT),
+                    TIMEOUT);
+        }
+
+        public void onTextChanged() {
+            start();
+        }
+
+        public Handler getHandler() {
+            return mHandler;
+        }
+
+        public long firedAt() {
+            return mFiredAt;
+        }
+    }
+
+    /**
+     * StkAppService.extendTimeout(), called on every character.
+     */
+    private static final class ScheduledTimeout implements InputTimeout,
+            StkTimeoutScheduler.Callback {
+        private final Object mCmd = new Object();
+        private final Handler mHandler = new Handler();
+        private final StkTimeoutScheduler mTimeouts =
+                new StkTimeoutScheduler(mHandler, this);
+        private long mFiredAt = -1;
+
+        public void start() {
+            mTimeouts.schedule(mCmd, TIMEOUT, StkCommands.RES_ID_TIMEOUT);
+        }
+
+        public void onTextChanged() {
+            mTimeouts.extend(mCmd, TIMEOUT);
+        }
+
+        public void onTimeout(Object key, int resId) {
+            if (key == mCmd && resId == StkCommands.RES_ID_TIMEOUT) {
+                mFiredAt = SystemClock.uptimeMillis();
+            }
+        }
+
+        public Handler getHandler() {
+            return mHandler;
+        }
+
+        public long firedAt() {
+            return mFiredAt;
+        }
+    }
+
+    public static void main(String[] args) {
+        long reposted = type("re-post per character", new RepostingTimeout());
+        long scheduled = type("StkTimeoutScheduler.extend", new ScheduledTimeout());
+        check(scheduled < reposted, "scheduler does not save handler operations");
+
+        StkBenchmark.report(
+                perCharacter("re-post per character", new RepostingTimeout()),
+                perCharacter("StkTimeoutScheduler.extend", new ScheduledTimeout()));
+    }
+
+    /**
+     * Types CHARACTERS characters, then waits for the timeout, which must
+     * fire TIMEOUT after the last one. Returns the handler operations per
+     * character, not counting the start.
+     */
+    private static long type(String name, InputTimeout timeout) {
+        Handler handler = timeout.getHandler();
+        timeout.start();
+        long started = handler.getOperations();
+        long lastKey = 0;
+        for (int i = 0; i < CHARACTERS; i++) {
+            SystemClock.sleep(TYPING_INTERVAL);
+            handler.runDue();
+            check(timeout.firedAt() < 0, name + ": fired while typing");
+            timeout.onTextChanged();
+            lastKey = SystemClock.uptimeMillis();
+        }
+        while (timeout.firedAt() < 0
+                && SystemClock.uptimeMillis() < lastKey + 2 * TIMEOUT) {
+            SystemClock.sleep(STEP);
+            handler.runDue();
+        }
+        check(timeout.firedAt() == lastKey + TIMEOUT,
+                name + ": fired at " + (timeout.firedAt() - lastKey)
+                + " ms after the last character");
+        check(handler.getQueueSize() == 0, name + ": messages left");
+
+        long operations = handler.getOperations() - started;
+        System.out.println(String.format(Locale.US,
+                "%-40s %6d handler ops / %d characters = %.2f per character",
+                name, operations, CHARACTERS, (double) operations / CHARACTERS));
+        return operations;
+    }
+
+    // Time of one character, with the clock standing still.
+    private static StkBenchmark perCharacter(String name,
+            final InputTimeout timeout) {
+        timeout.start();
+        return new StkBenchmark(name) {
+            long run(int n) {
+                for (int i = 0; i < n; i++) {
+                    timeout.onTextChanged();
+                }
+                return timeout.getHandler().getOperations();
+            }
+        };
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
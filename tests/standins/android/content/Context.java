@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+
+/**
+ * Host JVM stand-in for the platform class, with the file api StkMetrics
+ * uses. Files go to the JVM's temporary directory.
+ */
+public class Context {
+    public static final int MODE_APPEND = 0x8000;
+
+    public File getFileStreamPath(String name) {
+        return new File(System.getProperty("java.io.tmpdir"), name);
+    }
+
+    public FileOutputStream openFileOutput(String name, int mode)
+            throws FileNotFoundException {
+        return new FileOutputStream(getFileStreamPath(name),
+                (mode & MODE_APPEND) != 0);
+    }
+}
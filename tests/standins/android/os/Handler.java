@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import java.util.ArrayList;
+
+/**
+ * Host JVM stand-in for the platform class. Messages are kept in a list
+ * ordered by time and only run by runDue(), at the time of SystemClock.
+ * Every post, send and remove is counted in getOperations(), the count the
+ * platform class pays a MessageQueue lock and traversal for.
+ */
+public class Handler {
+    private final ArrayList<Message> mQueue = new ArrayList<Message>();
+    private long mOperations = 0;
+
+    public void handleMessage(Message msg) {
+    }
+
+    public final Message obtainMessage(int what) {
+        Message msg = new Message();
+        msg.what = what;
+        msg.target = this;
+        return msg;
+    }
+
+    public final boolean post(Runnable r) {
+        return postAtTime(r, SystemClock.uptimeMillis());
+    }
+
+    public final boolean postDelayed(Runnable r, long delayMillis) {
+        return postAtTime(r, SystemClock.uptimeMillis() + delayMillis);
+    }
+
+    public final boolean postAtTime(Runnable r, long uptimeMillis) {
+        Message msg = new Message();
+        msg.callback = r;
+        return sendMessageAtTime(msg, uptimeMillis);
+    }
+
+    public final boolean sendMessage(Message msg) {
+        return sendMessageAtTime(msg, SystemClock.uptimeMillis());
+    }
+
+    public final boolean sendMessageDelayed(Message msg, long delayMillis) {
+        return sendMessageAtTime(msg, SystemClock.uptimeMillis() + delayMillis);
+    }
+
+    public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+        mOperations++;
+        msg.target = this;
+        msg.when = uptimeMillis;
+        int i = mQueue.size();
+        while (i > 0 && mQueue.get(i - 1).when > uptimeMillis) {
+            i--;
+        }
+        mQueue.add(i, msg);
+        return true;
+    }
+
+    public final void removeCallbacks(Runnable r) {
+        mOperations++;
+        for (int i = mQueue.size() - 1; i >= 0; i--) {
+            if (mQueue.get(i).callback == r) {
+                mQueue.remove(i);
+            }
+        }
+    }
+
+    public final void removeMessages(int what) {
+        mOperations++;
+        for (int i = mQueue.size() - 1; i >= 0; i--) {
+            Message msg = mQueue.get(i);
+            if (msg.callback == null && msg.what == what) {
+                mQueue.remove(i);
+            }
+        }
+    }
+
+    public final boolean hasMessages(int what) {
+        mOperations++;
+        for (Message msg : mQueue) {
+            if (msg.callback == null && msg.what == what) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Stand-in only.
+
+    /**
+     * Runs the messages due at the current SystemClock time, in order.
+     */
+    public final void runDue() {
+        while (!mQueue.isEmpty()
+                && mQueue.get(0).when <= SystemClock.uptimeMillis()) {
+            Message msg = mQueue.remove(0);
+            if (msg.callback != null) {
+                msg.callback.run();
+            } else {
+                handleMessage(msg);
+            }
+        }
+    }
+
+    public final long getOperations() {
+        return mOperations;
+    }
+
+    public final int getQueueSize() {
+        return mQueue.size();
+    }
+}
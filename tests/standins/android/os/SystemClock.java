@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+/**
+ * Host JVM stand-in for the platform class. Time is virtual: it only moves
+ * in sleep(), which returns at once, so timeouts can be stepped through
+ * deterministically.
+ */
+public final class SystemClock {
+    private SystemClock() {}
+
+    private static long sNow = 0;
+
+    public static void sleep(long ms) {
+        sNow += ms;
+    }
+
+    public static long elapsedRealtime() {
+        return sNow;
+    }
+
+    public static long uptimeMillis() {
+        return sNow;
+    }
+}
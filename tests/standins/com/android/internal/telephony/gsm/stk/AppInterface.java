@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.gsm.stk;
+
+/**
+ * Host JVM stand-in for the telephony interface.
+ */
+public interface AppInterface {
+    void onCmdResponse(StkResponseMessage resMsg);
+
+    public static enum CommandType {
+        DISPLAY_TEXT,
+        GET_INKEY,
+        GET_INPUT,
+        LAUNCH_BROWSER,
+        PLAY_TONE,
+        REFRESH,
+        SELECT_ITEM,
+        SEND_SS,
+        SEND_USSD,
+        SEND_SMS,
+        SEND_DTMF,
+        SET_UP_EVENT_LIST,
+        SET_UP_IDLE_MODE_TEXT,
+        SET_UP_MENU,
+        SET_UP_CALL,
+        PROVIDE_LOCAL_INFORMATION,
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.gsm.stk;
+
+/**
+ * Host JVM stand-in for the telephony class, without icon.
+ */
+public class Input {
+    public String text = "";
+    public String defaultText = "";
+    public int minLen = 0;
+    public int maxLen = 1;
+    public boolean ucs2 = false;
+    public boolean packed = false;
+    public boolean digitOnly = false;
+    public boolean echo = false;
+    public boolean yesNo = false;
+    public boolean helpAvailable = false;
+    public Duration duration = null;
+}
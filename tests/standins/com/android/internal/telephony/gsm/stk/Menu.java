@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.gsm.stk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Host JVM stand-in for the telephony class, without icons.
+ */
+public class Menu {
+    public List<Item> items = new ArrayList<Item>();
+    public String title;
+    public int defaultItem;
+    public boolean softKeyPreferred;
+    public boolean helpAvailable;
+}
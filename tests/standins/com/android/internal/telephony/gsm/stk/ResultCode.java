@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.gsm.stk;
+
+/**
+ * Host JVM stand-in for the telephony enum, with the codes this app uses.
+ */
+public enum ResultCode {
+    OK(0x00),
+    HELP_INFO_REQUIRED(0x13),
+    UICC_SESSION_TERM_BY_USER(0x10),
+    BACKWARD_MOVE_BY_USER(0x11),
+    NO_RESPONSE_FROM_USER(0x12),
+    TERMINAL_CRNTLY_UNABLE_TO_PROCESS(0x20);
+
+    private int mCode;
+
+    ResultCode(int code) {
+        mCode = code;
+    }
+
+    public int value() {
+        return mCode;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.gsm.stk;
+
+/**
+ * Host JVM stand-in for the telephony class. Not Parcelable, and built
+ * directly instead of from a parsed command.
+ */
+public class StkCmdMessage {
+    private final AppInterface.CommandType mType;
+    private final TextMessage mTextMsg;
+    private final Menu mMenu;
+    private final Input mInput;
+    private final ToneSettings mToneSettings;
+    private final BrowserSettings mBrowserSettings;
+    private final CallSettings mCallSettings;
+
+    public class BrowserSettings {
+        public String url;
+    }
+
+    public class CallSettings {
+        public TextMessage confirmMsg;
+        public TextMessage callMsg;
+    }
+
+    public StkCmdMessage(AppInterface.CommandType type, TextMessage textMsg,
+            Menu menu) {
+        this(type, textMsg, menu, null, null);
+    }
+
+    public StkCmdMessage(AppInterface.CommandType type, TextMessage textMsg,
+            Menu menu, Input input, ToneSettings toneSettings) {
+        mType = type;
+        mTextMsg = textMsg;
+        mMenu = menu;
+        mInput = input;
+        mToneSettings = toneSettings;
+        mBrowserSettings = new BrowserSettings();
+        mCallSettings = new CallSettings();
+    }
+
+    public AppInterface.CommandType getCmdType() {
+        return mType;
+    }
+
+    public TextMessage geTextMessage() {
+        return mTextMsg;
+    }
+
+    public Menu getMenu() {
+        return mMenu;
+    }
+
+    public Input geInput() {
+        return mInput;
+    }
+
+    public ToneSettings getToneSettings() {
+        return mToneSettings;
+    }
+
+    public BrowserSettings getBrowserSettings() {
+        return mBrowserSettings;
+    }
+
+    public CallSettings getCallSettings() {
+        return mCallSettings;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.gsm.stk;
+
+/**
+ * Host JVM stand-in for the telephony class. Fields are public so fakes of
+ * AppInterface can check what they were answered.
+ */
+public class StkResponseMessage {
+    public final StkCmdMessage cmd;
+    public ResultCode resCode = ResultCode.OK;
+    public int menuSelection = 0;
+    public String input = null;
+    public boolean yesNo = false;
+    public boolean confirmed = false;
+
+    public StkResponseMessage(StkCmdMessage cmdMsg) {
+        cmd = cmdMsg;
+    }
+
+    public void setResultCode(ResultCode resCode) {
+        this.resCode = resCode;
+    }
+
+    public void setMenuSelection(int selection) {
+        menuSelection = selection;
+    }
+
+    public void setInput(String input) {
+        this.input = input;
+    }
+
+    public void setYesNo(boolean yesNo) {
+        this.yesNo = yesNo;
+    }
+
+    public void setConfirmation(boolean confirm) {
+        confirmed = confirm;
+    }
+}